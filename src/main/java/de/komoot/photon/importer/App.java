@@ -2,24 +2,37 @@ package de.komoot.photon.importer;
 
 import com.beust.jcommander.JCommander;
 import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.cache.CacheStats;
+import com.vividsolutions.jts.geom.Envelope;
+import de.komoot.photon.importer.elasticsearch.BulkIndexer;
+import de.komoot.photon.importer.elasticsearch.CachingSearcher;
+import de.komoot.photon.importer.elasticsearch.GeoJsonWriter;
 import de.komoot.photon.importer.elasticsearch.Importer;
 import de.komoot.photon.importer.elasticsearch.Searcher;
 import de.komoot.photon.importer.elasticsearch.Server;
+import de.komoot.photon.importer.json.JsonDumpReader;
 import de.komoot.photon.importer.json.JsonDumper;
 import de.komoot.photon.importer.nominatim.NominatimConnector;
 import de.komoot.photon.importer.nominatim.NominatimUpdater;
+import de.komoot.photon.importer.nominatim.UpdateScheduler;
 import lombok.extern.slf4j.Slf4j;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.elasticsearch.ElasticsearchTimeoutException;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.collect.ImmutableSet;
-import org.json.JSONArray;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
 import org.json.JSONObject;
 import spark.Request;
 import spark.Response;
 import spark.Route;
 
-import java.io.FileNotFoundException;
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
 import java.util.Set;
 
 import static spark.Spark.get;
@@ -28,7 +41,7 @@ import static spark.Spark.setIpAddress;
 
 @Slf4j
 public class App {
-	private static final Set<String> supportedLanguages = ImmutableSet.of("de", "en", "fr", "it");
+	private static final Set<String> supportedLanguages = ImmutableSet.copyOf(Utils.languages);
 	private static final ObjectMapper mapper = new ObjectMapper();
 
 	public static void main(String[] rawArgs) {
@@ -41,20 +54,53 @@ public class App {
 		Client esNodeClient = esServer.getClient();
 
 		if(args.isNominatimImport()) {
-			esServer.recreateIndex(); // dump previous data
-			Importer importer = new Importer(esNodeClient);
-			NominatimConnector nominatimConnector = new NominatimConnector(args.getHost(), args.getPort(), args.getDatabase(), args.getUser(), args.getPassword());
-			nominatimConnector.setImporter(importer);
-			nominatimConnector.readEntireDatabase();
+			// import into a new index, searches are served from the previous one until the import is verified
+			final String indexName = esServer.createIndex();
+			Importer importer = new Importer(esNodeClient, createBulkIndexer(esNodeClient, "import", args, false), indexName);
+			try {
+				if(!args.isKeepIndexSettings()) {
+					importer.startBulkLoad();
+				}
+				NominatimConnector nominatimConnector = new NominatimConnector(args.getHost(), args.getPort(), args.getDatabase(), args.getUser(), args.getPassword());
+				nominatimConnector.setImporter(importer);
+				nominatimConnector.setAddressCacheSize(args.getAddressCacheSize());
+				nominatimConnector.setParallelism(args.getThreads(), args.getPartitions() != null ? args.getPartitions() : args.getThreads(), args.getPartitionKey());
+				nominatimConnector.readEntireDatabase();
+			} catch(RuntimeException e) {
+				log.error(String.format("import into %s failed", indexName), e);
+				discard(esServer, indexName, args.isKeepFailedIndex());
+			}
+			publish(esServer, importer, indexName, args.isKeepFailedIndex());
+		}
+
+		if(args.getJsonImport() != null) {
+			final String indexName = esServer.createIndex();
+			Importer importer = new Importer(esNodeClient, createBulkIndexer(esNodeClient, "import", args, false), indexName);
+			try {
+				if(!args.isKeepIndexSettings()) {
+					importer.startBulkLoad();
+				}
+				new JsonDumpReader(importer, args.getThreads()).read(new File(args.getJsonImport()));
+			} catch(RuntimeException e) {
+				log.error(String.format("import into %s failed", indexName), e);
+				discard(esServer, indexName, args.isKeepFailedIndex());
+			}
+			publish(esServer, importer, indexName, args.isKeepFailedIndex());
 		}
 
 		if(args.isJsonDump()) {
 			try {
-				final JsonDumper jsonDumper = new JsonDumper("/tmp/photon_dump", args.getJsonLines());
+				final JsonDumper jsonDumper = new JsonDumper(new File(args.getJsonDirectory()), args.getJsonChunkSizeMb() * 1024L * 1024L, args.isJsonGzip(), args.isJsonBinary(), args.getThreads());
+				if(args.getJsonLines() != null) {
+					log.warn("-json-nb-docs is deprecated, use -json-chunk-size-mb");
+					jsonDumper.setChunkDocuments(args.getJsonLines());
+				}
 				NominatimConnector nominatimConnector = new NominatimConnector(args.getHost(), args.getPort(), args.getDatabase(), args.getUser(), args.getPassword());
 				nominatimConnector.setImporter(jsonDumper);
+				nominatimConnector.setAddressCacheSize(args.getAddressCacheSize());
+				nominatimConnector.setParallelism(args.getThreads(), args.getPartitions() != null ? args.getPartitions() : args.getThreads(), args.getPartitionKey());
 				nominatimConnector.readEntireDatabase();
-			} catch(FileNotFoundException e) {
+			} catch(IOException e) {
 				log.error("cannot create dump", e);
 			}
 		}
@@ -68,33 +114,76 @@ public class App {
 		}
 
 		if(args.getImportSnapshot() != null) {
-			esServer.deleteIndex();
-			esServer.importSnapshot(args.getImportSnapshot(), "photon_snapshot_2014_05");
-			//esServer.importSnapshot(args.getImportSnapshot());
+			esServer.importSnapshot(args.getImportSnapshot());
 		}
 
+		startApi(args, esNodeClient);
+	}
+
+	/**
+	 * starts the nominatim updates and serves the http api
+	 */
+	static void startApi(CommandLineArgs args, Client esNodeClient) {
 		final NominatimUpdater nominatimUpdater = new NominatimUpdater(args.getHost(), args.getPort(), args.getDatabase(), args.getUser(), args.getPassword());
-		de.komoot.photon.importer.Updater updater = new de.komoot.photon.importer.elasticsearch.Updater(esNodeClient);
+		final Searcher esSearcher = new Searcher(esNodeClient);
+		esSearcher.setTimeout(TimeValue.timeValueMillis(args.getSearchTimeout()));
+		final RequestLimiter requestLimiter = new RequestLimiter(args.getSearchConcurrency(), args.getSearchQueue(), args.getSearchTimeout());
+		final boolean asyncSearch = args.isAsyncSearch();
+		// shards stop searching after the search timeout, leave time to collect and transfer their results
+		final long asyncTimeoutMillis = 2L * args.getSearchTimeout();
+		final CachingSearcher searcher = new CachingSearcher(esSearcher, args.getCacheSize(), args.getCacheTtl());
+		de.komoot.photon.importer.elasticsearch.Updater updater = new de.komoot.photon.importer.elasticsearch.Updater(esNodeClient, createBulkIndexer(esNodeClient, "update", args, true));
+		updater.setFinishListener(new Runnable() {
+			@Override
+			public void run() {
+				searcher.invalidate();
+			}
+		});
 		nominatimUpdater.setUpdater(updater);
 
                 setPort(args.getListenPort());
                 setIpAddress(args.getListenIp());
                 
+		final UpdateScheduler updateScheduler = new UpdateScheduler(nominatimUpdater, args.getNominatimUpdateInterval(), args.getNominatimUpdateMaxInterval());
+		updateScheduler.start();
+
 		get(new Route("/nominatim-update") {
 			@Override
 			public Object handle(Request request, Response response) {
-				Thread nominatimUpdaterThread = new Thread() {
-					@Override
-					public void run() {
-						nominatimUpdater.update();
-					}
-				};
-				nominatimUpdaterThread.start();
+				if(!updateScheduler.trigger()) {
+					return "nominatim update is already running, changes will be picked up by it or by the next update";
+				}
 				return "nominatim update started (more information in console output) ...";
 			}
 		});
 
-		final Searcher searcher = new Searcher(esNodeClient);
+		get(new Route("/nominatim-update/status") {
+			@Override
+			public Object handle(Request request, Response response) {
+				response.type("application/json; charset=utf-8");
+				return new JSONObject(updateScheduler.getStatus()).toString();
+			}
+		});
+
+		get(new Route("/api/cache-status") {
+			@Override
+			public Object handle(Request request, Response response) {
+				final CacheStats stats = searcher.getStats();
+				final JSONObject status = new JSONObject();
+				status.put("size", searcher.getSize());
+				status.put("hits", stats.hitCount());
+				status.put("misses", stats.missCount());
+				status.put("hitRate", stats.hitRate());
+				status.put("evictions", stats.evictionCount());
+				status.put("averageSearchMillis", stats.averageLoadPenalty() / 1e6);
+				status.put("rejectedRequests", requestLimiter.getRejectedCount());
+
+				response.type("application/json; charset=utf-8");
+				return status.toString();
+			}
+		});
+
+		final GeoJsonWriter geoJsonWriter = new GeoJsonWriter();
 		get(new Route("api") {
 			@Override
 			public String handle(Request request, Response response) {
@@ -126,24 +215,195 @@ public class App {
 				} catch(Exception e) {
 				}
 
-				List<JSONObject> results = searcher.search(query, lang, lon, lat, limit, true);
-				if(results.isEmpty()) {
-					// try again, but less restrictive
-					results = searcher.search(query, lang, lon, lat, limit, false);
+				// parse viewport: minLon,minLat,maxLon,maxLat
+				Envelope bbox = null;
+				final String bboxParam = request.queryParams("bbox");
+				if(bboxParam != null) {
+					try {
+						final String[] values = bboxParam.split(",");
+						bbox = new Envelope(Double.parseDouble(values[0]), Double.parseDouble(values[2]), Double.parseDouble(values[1]), Double.parseDouble(values[3]));
+					} catch(Exception e) {
+						halt(400, "invalid bounding box 'bbox', expected minLon,minLat,maxLon,maxLat: /?q=berlin&bbox=13,52,14,53");
+					}
 				}
 
-				// build geojson
-				final JSONObject collection = new JSONObject();
-				collection.put("type", "FeatureCollection");
-				collection.put("features", new JSONArray(results));
+				// parse countries
+				Set<String> countryCodes = null;
+				final String countryParam = request.queryParams("countrycode");
+				if(countryParam != null) {
+					countryCodes = ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(countryParam.toUpperCase(Locale.ENGLISH)));
+				}
 
-				response.type("application/json; charset=utf-8");
+				final AsyncSearchResponse searched = AsyncSearchResponse.get(request.raw());
+				if(searched != null) {
+					// dispatched again after the asynchronous search is done
+					if(searched.getHits() == null) {
+						halt(searched.getErrorStatus(), searched.getErrorMessage());
+					}
+					return writeGeoJson(geoJsonWriter, response, searched.getHits(), lang, request.queryParams("debug") != null);
+				}
+
+				if(!requestLimiter.acquire()) {
+					halt(503, "too many requests, try again later");
+				}
+
+				if(asyncSearch) {
+					final AsyncSearchResponse asyncResponse = new AsyncSearchResponse(request.raw(), requestLimiter, asyncTimeoutMillis);
+					try {
+						searcher.search(query, lang, lon, lat, bbox, countryCodes, limit, asyncResponse);
+					} catch(RuntimeException e) {
+						asyncResponse.onFailure(e);
+					}
+					// the hits are written when the request is dispatched again
+					return "";
+				}
+
+				SearchHit[] results = null;
+				try {
+					results = searcher.search(query, lang, lon, lat, bbox, countryCodes, limit);
+				} catch(ElasticsearchTimeoutException e) {
+					halt(503, "search timed out, try again later");
+				} finally {
+					requestLimiter.release();
+				}
+
+				return writeGeoJson(geoJsonWriter, response, results, lang, request.queryParams("debug") != null);
+			}
+		});
+
+		get(new Route("reverse") {
+			@Override
+			public String handle(Request request, Response response) {
+				// parse location
+				double lon = 0, lat = 0;
+				try {
+					lon = Double.parseDouble(request.queryParams("lon"));
+					lat = Double.parseDouble(request.queryParams("lat"));
+				} catch(Exception e) {
+					halt(400, "missing location 'lon' and 'lat': /reverse?lon=13.4&lat=52.5");
+				}
+
+				// parse preferred language
+				String lang = request.queryParams("lang");
+				if(lang == null) lang = "en";
+				if(!supportedLanguages.contains(lang)) {
+					halt(400, "language " + lang + " is not supported, supported languages are: " + Joiner.on(", ").join(supportedLanguages));
+				}
+
+				// parse search radius in km
+				double radius = 1;
+				if(request.queryParams("radius") != null) {
+					try {
+						radius = Double.parseDouble(request.queryParams("radius"));
+					} catch(NumberFormatException e) {
+						radius = Double.NaN;
+					}
+					if(!(radius > 0)) {
+						halt(400, "invalid search radius 'radius', expected kilometers greater than 0: /reverse?lon=13.4&lat=52.5&radius=2");
+					}
+					radius = Math.min(50, radius);
+				}
+
+				// parse limit for search results
+				int limit = 1;
+				if(request.queryParams("limit") != null) {
+					try {
+						limit = Integer.parseInt(request.queryParams("limit"));
+					} catch(NumberFormatException e) {
+						limit = 0;
+					}
+					if(limit <= 0) {
+						halt(400, "invalid 'limit', expected a number greater than 0: /reverse?lon=13.4&lat=52.5&limit=5");
+					}
+					limit = Math.min(50, limit);
+				}
+
+				final AsyncSearchResponse searched = AsyncSearchResponse.get(request.raw());
+				if(searched != null) {
+					// dispatched again after the asynchronous search is done
+					if(searched.getHits() == null) {
+						halt(searched.getErrorStatus(), searched.getErrorMessage());
+					}
+					return writeGeoJson(geoJsonWriter, response, searched.getHits(), lang, request.queryParams("debug") != null);
+				}
+
+				if(!requestLimiter.acquire()) {
+					halt(503, "too many requests, try again later");
+				}
 
-				if(request.queryParams("debug") != null)
-					return collection.toString(4);
+				if(asyncSearch) {
+					final AsyncSearchResponse asyncResponse = new AsyncSearchResponse(request.raw(), requestLimiter, asyncTimeoutMillis);
+					try {
+						esSearcher.reverse(lon, lat, radius, lang, limit, asyncResponse);
+					} catch(RuntimeException e) {
+						asyncResponse.onFailure(e);
+					}
+					// the hits are written when the request is dispatched again
+					return "";
+				}
+
+				SearchHit[] results = null;
+				try {
+					results = esSearcher.reverse(lon, lat, radius, lang, limit);
+				} catch(ElasticsearchTimeoutException e) {
+					halt(503, "search timed out, try again later");
+				} finally {
+					requestLimiter.release();
+				}
 
-				return collection.toString();
+				return writeGeoJson(geoJsonWriter, response, results, lang, request.queryParams("debug") != null);
 			}
 		});
 	}
+
+	/**
+	 * streams the hits as geojson. The response is committed afterwards, so spark does not append the empty body
+	 * returned by the route.
+	 */
+	private static String writeGeoJson(GeoJsonWriter geoJsonWriter, Response response, SearchHit[] hits, String lang, boolean pretty) {
+		response.type("application/json; charset=utf-8");
+		try {
+			geoJsonWriter.write(hits, lang, pretty, response.raw().getOutputStream());
+			response.raw().flushBuffer();
+		} catch(IOException e) {
+			log.error("cannot write search results", e);
+		}
+		return "";
+	}
+
+	/**
+	 * serves searches from a freshly imported index if it passes verification. Otherwise the index is discarded.
+	 */
+	private static void publish(Server esServer, Importer importer, String indexName, boolean keepFailedIndex) {
+		if(importer.verify()) {
+			esServer.switchAlias(indexName);
+			return;
+		}
+
+		log.error(String.format("import into %s failed verification", indexName));
+		discard(esServer, indexName, keepFailedIndex);
+	}
+
+	/**
+	 * deletes the index of a failed import (unless it is kept for inspection) and exits with status 1, so scripts
+	 * running the import notice the failure. The alias still points to the previous index.
+	 */
+	private static void discard(Server esServer, String indexName, boolean keepFailedIndex) {
+		if(keepFailedIndex) {
+			log.error(String.format("index %s of the failed import is kept for inspection", indexName));
+		} else {
+			log.error(String.format("deleting index %s of the failed import", indexName));
+			esServer.deleteIndex(indexName);
+		}
+		esServer.shutdown();
+		System.exit(1);
+	}
+
+	/**
+	 * @param ordered true for updates, which can change a document more than once and must not be reordered
+	 */
+	private static BulkIndexer createBulkIndexer(Client client, String name, CommandLineArgs args, boolean ordered) {
+		return new BulkIndexer(client, name, args.getBulkConcurrency(), args.getBulkActions(),
+				new ByteSizeValue(args.getBulkSizeMb(), ByteSizeUnit.MB), TimeValue.timeValueSeconds(args.getBulkFlushInterval()), ordered);
+	}
 }
@@ -0,0 +1,144 @@
+package de.komoot.photon.importer;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.search.SearchHit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * answers a search request asynchronously: the http thread is returned to jetty while elasticsearch searches. When the
+ * hits arrive the request is dispatched to its route again, which writes them like a synchronous search. The container
+ * starts that dispatch only after the first one returned, so spark's handling of the first dispatch and elasticsearch
+ * threads never touch the response. The request holds its slot of the {@link RequestLimiter} until the search is done.
+ *
+ * @author christoph
+ */
+@Slf4j
+public class AsyncSearchResponse implements ActionListener<SearchHit[]> {
+	private static final String ATTRIBUTE = AsyncSearchResponse.class.getName();
+
+	private final AsyncContext asyncContext;
+	private final RequestLimiter requestLimiter;
+	private final AtomicBoolean completed = new AtomicBoolean();
+	private final AtomicBoolean released = new AtomicBoolean();
+	private volatile SearchHit[] hits;
+	private volatile int errorStatus;
+	private volatile String errorMessage;
+
+	/**
+	 * puts the request into async mode, create it before the search is started. It takes over the permit the request
+	 * acquired from the limiter, the permit is released right away if the request cannot be put into async mode.
+	 *
+	 * @param timeoutMillis the request is answered with 503 if there are no hits after this time
+	 */
+	public AsyncSearchResponse(HttpServletRequest request, RequestLimiter requestLimiter, long timeoutMillis) {
+		this.requestLimiter = requestLimiter;
+		try {
+			request.setAttribute(ATTRIBUTE, this);
+			this.asyncContext = request.startAsync();
+			this.asyncContext.setTimeout(timeoutMillis);
+			this.asyncContext.addListener(createListener());
+		} catch(RuntimeException e) {
+			// no search is started, nobody else releases the permit
+			release();
+			throw e;
+		}
+	}
+
+	private AsyncListener createListener() {
+		return new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) {
+				fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "search timed out, try again later");
+			}
+
+			@Override
+			public void onError(AsyncEvent event) {
+				completed.set(true);
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) {
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+		};
+	}
+
+	/**
+	 * @return the search started by the first dispatch of the request, null unless the request is dispatched again
+	 * after its search is done
+	 */
+	public static AsyncSearchResponse get(HttpServletRequest request) {
+		if(request.getDispatcherType() != DispatcherType.ASYNC) return null;
+		return (AsyncSearchResponse) request.getAttribute(ATTRIBUTE);
+	}
+
+	/**
+	 * @return hits of the search, null if it failed
+	 */
+	public SearchHit[] getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return http status to answer with if the search failed
+	 */
+	public int getErrorStatus() {
+		return errorStatus;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	@Override
+	public void onResponse(SearchHit[] hits) {
+		release();
+
+		if(!completed.compareAndSet(false, true)) return;
+		this.hits = hits;
+		// writes on a jetty thread, elasticsearch threads must not block on slow clients
+		asyncContext.dispatch();
+	}
+
+	@Override
+	public void onFailure(Throwable e) {
+		release();
+
+		if(e instanceof ElasticsearchTimeoutException) {
+			fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "search timed out, try again later");
+		} else {
+			log.error("search failed", e);
+			fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "search failed");
+		}
+	}
+
+	/**
+	 * the listener may be called twice, e.g. if the search fails after it passed the hits or throws after calling
+	 * the listener, the permit must be released only once
+	 */
+	private void release() {
+		if(released.compareAndSet(false, true)) {
+			requestLimiter.release();
+		}
+	}
+
+	private void fail(int status, String message) {
+		if(!completed.compareAndSet(false, true)) return;
+
+		errorStatus = status;
+		errorMessage = message;
+		asyncContext.dispatch();
+	}
+}
@@ -11,14 +11,83 @@ import java.io.File;
 
 @Data
 public class CommandLineArgs {
-	@Parameter(names = "-nominatim-import", description = "import nominatim database into photon (this will delete previous index)")
+	@Parameter(names = "-nominatim-import", description = "import nominatim database into a new index, photon switches to it and deletes the previous index once the import is complete and verified")
 	private boolean nominatimImport = false;
 
-	@Parameter(names = "-json", description = "import nominatim database and dump it to json like files in /tmp/ (useful for developing, see -json-nb-docs)")
+	@Parameter(names = "-json", description = "import nominatim database and dump it to json files in -json-dir, with -threads files written in parallel (useful for developing and fast re imports)")
 	private boolean jsonDump = false;
 
-	@Parameter(names = "-json-nb-docs", description = "if -json arg is set: number of documents per json file")
-	private int jsonLines = 100000;
+	@Parameter(names = "-json-dir", description = "if -json arg is set: directory of the dump (default /tmp/photon_dump)")
+	private String jsonDirectory = "/tmp/photon_dump";
+
+	@Parameter(names = "-json-chunk-size-mb", description = "if -json arg is set: size in MB after which a new json file is started (default 1024)")
+	private int jsonChunkSizeMb = 1024;
+
+	@Parameter(names = "-json-nb-docs", description = "deprecated, use -json-chunk-size-mb. If -json arg is set: number of documents after which a new json file is started")
+	private Integer jsonLines = null;
+
+	@Parameter(names = "-json-gzip", description = "if -json arg is set: compress the json files with gzip")
+	private boolean jsonGzip = false;
+
+	@Parameter(names = "-json-binary", description = "if -json arg is set: write photon's compact binary format instead of json, -json-import reads both")
+	private boolean jsonBinary = false;
+
+	@Parameter(names = "-json-import", description = "import a json dump (file, directory or file prefix) into a new index without nominatim, uses -threads readers")
+	private String jsonImport = null;
+
+	@Parameter(names = "-address-cache-size", description = "number of parent address hierarchies cached during import, house numbers and POIs share their parent's address. 0 queries get_addressdata once per document (default 10000)")
+	private int addressCacheSize = 10000;
+
+	@Parameter(names = "-threads", description = "number of workers per import stage (reading addresses, converting and indexing documents), 1 imports sequentially (default 1)")
+	private int threads = 1;
+
+	@Parameter(names = "-partitions", description = "number of key ranges placex is split into for import, every range is read over its own database connection (default: number of threads)")
+	private Integer partitions = null;
+
+	@Parameter(names = "-partition-key", description = "placex column used to split the import into key ranges: place_id or geometry_sector (default place_id)")
+	private String partitionKey = "place_id";
+
+	@Parameter(names = "-bulk-concurrency", description = "number of bulk requests sent to elasticsearch concurrently during import, further documents wait until one is completed. Updates are sent one bulk at a time to keep their order (default 4)")
+	private int bulkConcurrency = 4;
+
+	@Parameter(names = "-bulk-actions", description = "number of documents that trigger a bulk request during import and updates (default 10000)")
+	private int bulkActions = 10000;
+
+	@Parameter(names = "-bulk-size-mb", description = "size in megabytes that triggers a bulk request during import and updates, pending changes use at most this size times -bulk-concurrency (default 15)")
+	private int bulkSizeMb = 15;
+
+	@Parameter(names = "-bulk-flush-interval", description = "seconds after which pending documents are sent to elasticsearch regardless of the bulk size (default 5)")
+	private int bulkFlushInterval = 5;
+
+	@Parameter(names = "-keep-index-settings", description = "do not switch the index into bulk load settings (no refresh, no replicas) during -nominatim-import")
+	private boolean keepIndexSettings = false;
+
+	@Parameter(names = "-keep-failed-index", description = "keep the new index if -nominatim-import or -json-import fails or fails verification, by default it is deleted. photon exits with status 1 either way")
+	private boolean keepFailedIndex = false;
+
+	@Parameter(names = "-nominatim-update-interval", description = "poll nominatim for changes and update photon every n seconds, the interval grows while there are no changes. Polling is opt-in: 0 only updates on requests to /nominatim-update (default 0)")
+	private int nominatimUpdateInterval = 0;
+
+	@Parameter(names = "-nominatim-update-max-interval", description = "longest interval in seconds between two polls for nominatim changes (default 600)")
+	private int nominatimUpdateMaxInterval = 600;
+
+	@Parameter(names = "-cache-size", description = "number of search results kept in memory, 0 disables the cache (default 10000)")
+	private int cacheSize = 10000;
+
+	@Parameter(names = "-cache-ttl", description = "seconds a search result is cached, results are dropped earlier if photon is updated (default 300)")
+	private int cacheTtl = 300;
+
+	@Parameter(names = "-search-concurrency", description = "number of search requests processed at the same time (default 32)")
+	private int searchConcurrency = 32;
+
+	@Parameter(names = "-search-queue", description = "number of search requests waiting for processing, further requests are rejected with 503 (default 128)")
+	private int searchQueue = 128;
+
+	@Parameter(names = "-search-timeout", description = "milliseconds a search request may wait in the queue and may take in elasticsearch (default 2000)")
+	private int searchTimeout = 2000;
+
+	@Parameter(names = "-async-search", description = "answer search requests asynchronously, http threads do not wait for elasticsearch")
+	private boolean asyncSearch = false;
 
 	@Parameter(names = "-create-snapshot", description = "create snapshot of photon index, useful for backups and for fast reimports on other photon instances ")
 	private String createSnapshot = null;
@@ -3,7 +3,8 @@ package de.komoot.photon.importer;
 import de.komoot.photon.importer.model.PhotonDoc;
 
 /**
- * interface for bulk imports from a data source like nominatim
+ * interface for bulk imports from a data source like nominatim. {@link #add(PhotonDoc)} is called concurrently by the
+ * workers of a parallel import, implementations must be thread safe.
  *
  * @author felix
  */
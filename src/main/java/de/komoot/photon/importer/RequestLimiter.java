@@ -0,0 +1,65 @@
+package de.komoot.photon.importer;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * limits the number of requests that are processed concurrently. Requests beyond that wait in a bounded queue, if the
+ * queue is full or a request waited too long it is rejected right away instead of adding to the load of elasticsearch.
+ *
+ * @author christoph
+ */
+public class RequestLimiter {
+	private final Semaphore workers;
+	private final Semaphore admitted;
+	private final long maxWaitMillis;
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param concurrency   number of requests processed at the same time
+	 * @param queueSize     number of requests waiting for processing
+	 * @param maxWaitMillis time a request may wait in the queue
+	 */
+	public RequestLimiter(int concurrency, int queueSize, long maxWaitMillis) {
+		this.workers = new Semaphore(concurrency, true);
+		this.admitted = new Semaphore(concurrency + queueSize);
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * @return true if the request may be processed, it must call {@link #release()} afterwards. false if it should be
+	 * rejected.
+	 */
+	public boolean acquire() {
+		if(!admitted.tryAcquire()) {
+			rejected.incrementAndGet();
+			return false;
+		}
+
+		boolean acquired = false;
+		try {
+			acquired = workers.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if(!acquired) {
+			admitted.release();
+			rejected.incrementAndGet();
+		}
+		return acquired;
+	}
+
+	public void release() {
+		workers.release();
+		admitted.release();
+	}
+
+	/**
+	 * @return number of requests that were rejected since start
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+}
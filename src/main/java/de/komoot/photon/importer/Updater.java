@@ -14,5 +14,8 @@ public interface Updater {
 
 	public void finish();
 
+	/**
+	 * replaces the document with the same place id or creates it if it does not exist yet
+	 */
 	public void updateOrCreate(PhotonDoc updatedDoc);
 }
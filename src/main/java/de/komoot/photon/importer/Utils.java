@@ -1,16 +1,11 @@
 package de.komoot.photon.importer;
 
-import com.google.common.base.Joiner;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.SetMultimap;
 import com.vividsolutions.jts.geom.Envelope;
 import de.komoot.photon.importer.model.PhotonDoc;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 
 import java.io.IOException;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -20,9 +15,34 @@ import java.util.Set;
  * @author christoph
  */
 public class Utils {
-	static final Joiner commaJoiner = Joiner.on(", ").skipNulls();
+	/**
+	 * languages photon indexes names in and answers searches in
+	 */
+	public final static String[] languages = new String[]{"de", "en", "fr", "it"};
+
+	/**
+	 * osm keys of the localised names, "name:" + language
+	 */
+	private final static String[] LANGUAGE_NAME_KEYS = new String[languages.length];
+
+	static {
+		for(int i = 0; i < languages.length; i++) {
+			LANGUAGE_NAME_KEYS[i] = "name:" + languages[i];
+		}
+	}
 
-	final static String[] languages = new String[]{"de", "en", "fr", "it"};
+	private final static String[] ALTERNATIVE_NAME_KEYS = {"alt_name", "int_name", "loc_name", "old_name"};
+	private final static String[] ALTERNATIVE_NAMES = {"alt", "int", "loc", "old"};
+
+	/**
+	 * joins the names of contexts, reused per thread as every document has contexts
+	 */
+	private final static ThreadLocal<StringBuilder> CONTEXT_BUFFER = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
 
 	public static XContentBuilder convert(PhotonDoc doc) throws IOException {
 		XContentBuilder builder = XContentFactory.jsonBuilder().startObject()
@@ -39,6 +59,10 @@ public class Utils {
 					.endObject();
 		}
 
+		if(doc.getCountryCode() != null) {
+			builder.field("countrycode", doc.getCountryCode().getAlpha2());
+		}
+
 		if(doc.getHouseNumber() != null) {
 			builder.field("housenumber", doc.getHouseNumber());
 		}
@@ -75,82 +99,91 @@ public class Utils {
 	}
 
 	private static void writeName(XContentBuilder builder, Map<String, String> name) throws IOException {
-		Map<String, String> fNames = filterNames(name);
+		if(name == null) return;
 
-		if(name.get("alt_name") != null)
-			fNames.put("alt", name.get("alt_name"));
+		boolean started = writeLocalised(builder, name, "name");
+		for(int i = 0; i < ALTERNATIVE_NAME_KEYS.length; i++) {
+			started = writeField(builder, "name", started, ALTERNATIVE_NAMES[i], name.get(ALTERNATIVE_NAME_KEYS[i]));
+		}
 
-		if(name.get("int_name") != null)
-			fNames.put("int", name.get("int_name"));
+		if(started) {
+			builder.endObject();
+		}
+	}
 
-		if(name.get("loc_name") != null)
-			fNames.put("loc", name.get("loc_name"));
+	private static void writeIntlNames(XContentBuilder builder, Map<String, String> names, String name) throws IOException {
+		if(names == null) return;
 
-		if(name.get("old_name") != null)
-			fNames.put("old", name.get("old_name"));
+		if(writeLocalised(builder, names, name)) {
+			builder.endObject();
+		}
+	}
 
-		write(builder, fNames, "name");
+	/**
+	 * writes the default and the localised names, the object is only started if there is a name
+	 *
+	 * @return true if the object was started
+	 */
+	private static boolean writeLocalised(XContentBuilder builder, Map<String, String> names, String name) throws IOException {
+		boolean started = writeField(builder, name, false, "default", names.get("name"));
+		for(int i = 0; i < languages.length; i++) {
+			started = writeField(builder, name, started, languages[i], names.get(LANGUAGE_NAME_KEYS[i]));
+		}
+		return started;
 	}
 
-	private static void write(XContentBuilder builder, Map<String, String> fNames, String name) throws IOException {
-		if(fNames.isEmpty()) return;
+	private static boolean writeField(XContentBuilder builder, String name, boolean started, String key, String value) throws IOException {
+		if(value == null) return started;
 
-		builder.startObject(name);
-		for(Map.Entry<String, String> entry : fNames.entrySet()) {
-			builder.field(entry.getKey(), entry.getValue());
+		if(!started) {
+			builder.startObject(name);
 		}
-		builder.endObject();
+		builder.field(key, value);
+		return true;
 	}
 
+	/**
+	 * writes the names of all contexts per language, comma separated without duplicates
+	 */
 	protected static void writeContext(XContentBuilder builder, Set<Map<String, String>> contexts) throws IOException {
-		final SetMultimap<String, String> multimap = HashMultimap.create();
+		if(contexts == null || contexts.isEmpty()) return;
 
-		for(Map<String, String> context : contexts) {
-			if(context.get("name") != null) {
-				multimap.put("default", context.get("name"));
-			}
-		}
-
-		for(String language : languages) {
-			for(Map<String, String> context : contexts) {
-				if(context.get("name:" + language) != null) {
-					multimap.put(language, context.get("name:" + language));
-				}
-			}
+		boolean started = writeContextNames(builder, contexts, "default", "name", false);
+		for(int i = 0; i < languages.length; i++) {
+			started = writeContextNames(builder, contexts, languages[i], LANGUAGE_NAME_KEYS[i], started);
 		}
 
-		final Map<String, Collection<String>> map = multimap.asMap();
-		if(!multimap.isEmpty()) {
-			builder.startObject("context");
-			for(Map.Entry<String, Collection<String>> entry : map.entrySet()) {
-				builder.field(entry.getKey(), commaJoiner.join(entry.getValue()));
-			}
+		if(started) {
 			builder.endObject();
 		}
 	}
 
-	private static void writeIntlNames(XContentBuilder builder, Map<String, String> names, String name) throws IOException {
-		Map<String, String> fNames = filterNames(names);
-		write(builder, fNames, name);
-	}
-
-	private static Map<String, String> filterNames(Map<String, String> names) {
-		return filterNames(names, new HashMap<String, String>());
-	}
-
-	private static Map<String, String> filterNames(Map<String, String> names, HashMap<String, String> filteredNames) {
-		if(names == null) return filteredNames;
+	private static boolean writeContextNames(XContentBuilder builder, Set<Map<String, String>> contexts, String field, String key, boolean started) throws IOException {
+		final StringBuilder joined = CONTEXT_BUFFER.get();
+		joined.setLength(0);
 
-		if(names.get("name") != null) {
-			filteredNames.put("default", names.get("name"));
-		}
+		for(Map<String, String> context : contexts) {
+			final String value = context.get(key);
+			if(value == null || containsName(contexts, context, key, value)) continue;
 
-		for(String language : languages) {
-			if(names.get("name:" + language) != null) {
-				filteredNames.put(language, names.get("name:" + language));
+			if(joined.length() > 0) {
+				joined.append(", ");
 			}
+			joined.append(value);
 		}
 
-		return filteredNames;
+		if(joined.length() == 0) return started;
+		return writeField(builder, "context", started, field, joined.toString());
+	}
+
+	/**
+	 * @return true if a context before the given one has the same name, contexts are few per document
+	 */
+	private static boolean containsName(Set<Map<String, String>> contexts, Map<String, String> until, String key, String value) {
+		for(Map<String, String> context : contexts) {
+			if(context == until) return false;
+			if(value.equals(context.get(key))) return true;
+		}
+		return false;
 	}
 }
@@ -0,0 +1,182 @@
+package de.komoot.photon.importer.binary;
+
+import com.google.common.base.Charsets;
+import com.neovisionaries.i18n.CountryCode;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import de.komoot.photon.importer.model.PhotonDoc;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static de.komoot.photon.importer.binary.PhotonDocWriter.*;
+
+/**
+ * reads photon documents written by {@link PhotonDocWriter}, one at a time
+ *
+ * @author christoph
+ */
+public class PhotonDocReader {
+	private final DataInputStream in;
+	private final List<String> strings = new ArrayList<String>();
+	private final GeometryFactory geometryFactory = new GeometryFactory();
+
+	/**
+	 * @throws IOException if the stream does not start with the binary format or its version is not supported
+	 */
+	public PhotonDocReader(InputStream in) throws IOException {
+		this.in = new DataInputStream(in);
+
+		final byte[] magic = new byte[MAGIC.length];
+		this.in.readFully(magic);
+		if(!Arrays.equals(magic, MAGIC)) {
+			throw new IOException("not a binary photon dump");
+		}
+
+		final int version = this.in.readUnsignedByte();
+		if(version != VERSION) {
+			throw new IOException(String.format("binary photon dump has version %d, supported is %d", version, VERSION));
+		}
+	}
+
+	/**
+	 * @return true if the stream starts with the binary format, the stream must support mark/reset
+	 */
+	public static boolean isBinary(InputStream in) throws IOException {
+		final byte[] magic = new byte[MAGIC.length];
+		in.mark(magic.length);
+		try {
+			return new DataInputStream(in).read(magic) == magic.length && Arrays.equals(magic, MAGIC);
+		} finally {
+			in.reset();
+		}
+	}
+
+	/**
+	 * @return next document, null at the end of the stream
+	 */
+	public PhotonDoc read() throws IOException {
+		final int first = in.read();
+		if(first == -1) return null;
+		final int flags = (int) readVarint(first);
+
+		final long placeId = readVarint();
+		final String osmType = readSymbol();
+		final long osmId = readVarint();
+		final String tagKey = readSymbol();
+		final String tagValue = readSymbol();
+		final long parentPlaceId = readVarint();
+		final long linkedPlaceId = readVarint();
+		final double importance = in.readDouble();
+		final Map<String, String> name = readMap(false);
+
+		final String houseNumber = (flags & HAS_HOUSENUMBER) != 0 ? readString() : null;
+		final String postcode = (flags & HAS_POSTCODE) != 0 ? readSymbol() : null;
+		final Map<String, String> extratags = (flags & HAS_EXTRATAGS) != 0 ? readMap(false) : null;
+		final CountryCode countryCode = (flags & HAS_COUNTRY_CODE) != 0 ? CountryCode.getByCode(readSymbol()) : null;
+
+		long lon = 0, lat = 0;
+		Point centroid = null;
+		if((flags & HAS_CENTROID) != 0) {
+			lon = readSignedVarint();
+			lat = readSignedVarint();
+			centroid = geometryFactory.createPoint(new Coordinate(fromFixed(lon), fromFixed(lat)));
+		}
+		Envelope bbox = null;
+		if((flags & HAS_BBOX) != 0) {
+			final double minX = fromFixed(lon + readSignedVarint());
+			final double minY = fromFixed(lat + readSignedVarint());
+			final double maxX = fromFixed(lon + readSignedVarint());
+			final double maxY = fromFixed(lat + readSignedVarint());
+			bbox = new Envelope(minX, maxX, minY, maxY);
+		}
+
+		final PhotonDoc doc = new PhotonDoc(placeId, osmType, osmId, tagKey, tagValue, name, houseNumber, extratags, bbox,
+				parentPlaceId, importance, countryCode, centroid, linkedPlaceId);
+		doc.setPostcode(postcode);
+		if((flags & HAS_STREET) != 0) doc.setStreet(readMap(true));
+		if((flags & HAS_CITY) != 0) doc.setCity(readMap(true));
+		if((flags & HAS_COUNTRY) != 0) doc.setCountry(readMap(true));
+
+		final int contextCount = (int) readVarint();
+		final Set<Map<String, String>> context = new HashSet<Map<String, String>>();
+		for(int i = 0; i < contextCount; i++) {
+			context.add(readMap(true));
+		}
+		doc.setContext(context);
+		return doc;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private static double fromFixed(long value) {
+		return value / COORDINATE_SCALE;
+	}
+
+	private Map<String, String> readMap(boolean internedValues) throws IOException {
+		final int size = (int) readVarint();
+		final Map<String, String> map = new HashMap<String, String>(size * 2);
+		for(int i = 0; i < size; i++) {
+			final String key = readSymbol();
+			map.put(key, internedValues ? readSymbol() : readString());
+		}
+		return map;
+	}
+
+	private String readSymbol() throws IOException {
+		final long id = readVarint();
+		if(id > 0) {
+			return strings.get((int) id - 1);
+		}
+
+		final String value = readString();
+		if(strings.size() < MAX_STRINGS) {
+			strings.add(value);
+		}
+		return value;
+	}
+
+	private String readString() throws IOException {
+		final byte[] bytes = new byte[(int) readVarint()];
+		in.readFully(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	private long readSignedVarint() throws IOException {
+		final long value = readVarint();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private long readVarint() throws IOException {
+		return readVarint(in.readUnsignedByte());
+	}
+
+	/**
+	 * @param first first byte of the varint, already read
+	 */
+	private long readVarint(int first) throws IOException {
+		long value = first & 0x7F;
+		int shift = 7;
+		int b = first;
+		while((b & 0x80) != 0) {
+			b = in.read();
+			if(b == -1) throw new EOFException("binary photon dump ends within a number");
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		}
+		return value;
+	}
+}
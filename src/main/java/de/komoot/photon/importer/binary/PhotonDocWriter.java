@@ -0,0 +1,181 @@
+package de.komoot.photon.importer.binary;
+
+import com.google.common.base.Charsets;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Point;
+import de.komoot.photon.importer.model.PhotonDoc;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * writes photon documents in a compact binary format, read them with {@link PhotonDocReader}.
+ * <p/>
+ * A stream starts with {@link #MAGIC} and the format {@link #VERSION}, followed by the documents. Ids are varints,
+ * coordinates are fixed point integers (1e-7 degrees, like OSM), the bounding box is stored relative to the centroid.
+ * Strings that repeat between documents (tags, name keys, addresses, postcodes) are interned: the first occurrence
+ * is written with its text and gets the next number of the stream's string table, later ones only write that number.
+ *
+ * @author christoph
+ */
+public class PhotonDocWriter {
+	public static final byte[] MAGIC = {'P', 'H', 'D', 'B'};
+	public static final int VERSION = 1;
+
+	/**
+	 * upper bound of the string table, strings beyond are always written as text
+	 */
+	static final int MAX_STRINGS = 1 << 20;
+	static final double COORDINATE_SCALE = 1e7;
+
+	static final int HAS_HOUSENUMBER = 1;
+	static final int HAS_POSTCODE = 1 << 1;
+	static final int HAS_EXTRATAGS = 1 << 2;
+	static final int HAS_BBOX = 1 << 3;
+	static final int HAS_COUNTRY_CODE = 1 << 4;
+	static final int HAS_CENTROID = 1 << 5;
+	static final int HAS_STREET = 1 << 6;
+	static final int HAS_CITY = 1 << 7;
+	static final int HAS_COUNTRY = 1 << 8;
+
+	private final DataOutputStream out;
+	private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+	public PhotonDocWriter(OutputStream out) throws IOException {
+		this.out = new DataOutputStream(out);
+		this.out.write(MAGIC);
+		this.out.writeByte(VERSION);
+	}
+
+	public void write(PhotonDoc doc) throws IOException {
+		int flags = 0;
+		if(doc.getHouseNumber() != null) flags |= HAS_HOUSENUMBER;
+		if(doc.getPostcode() != null) flags |= HAS_POSTCODE;
+		if(doc.getExtratags() != null) flags |= HAS_EXTRATAGS;
+		if(doc.getBbox() != null) flags |= HAS_BBOX;
+		if(doc.getCountryCode() != null) flags |= HAS_COUNTRY_CODE;
+		if(doc.getCentroid() != null) flags |= HAS_CENTROID;
+		if(doc.getStreet() != null) flags |= HAS_STREET;
+		if(doc.getCity() != null) flags |= HAS_CITY;
+		if(doc.getCountry() != null) flags |= HAS_COUNTRY;
+		writeVarint(flags);
+
+		writeVarint(doc.getPlaceId());
+		writeSymbol(doc.getOsmType());
+		writeVarint(doc.getOsmId());
+		writeSymbol(doc.getTagKey());
+		writeSymbol(doc.getTagValue());
+		writeVarint(doc.getParentPlaceId());
+		writeVarint(doc.getLinkedPlaceId());
+		out.writeDouble(doc.getImportance());
+		writeMap(doc.getName(), false);
+
+		if(doc.getHouseNumber() != null) writeString(doc.getHouseNumber());
+		if(doc.getPostcode() != null) writeSymbol(doc.getPostcode());
+		if(doc.getExtratags() != null) writeMap(doc.getExtratags(), false);
+		if(doc.getCountryCode() != null) writeSymbol(doc.getCountryCode().getAlpha2());
+
+		long lon = 0, lat = 0;
+		if(doc.getCentroid() != null) {
+			final Point centroid = doc.getCentroid();
+			lon = toFixed(centroid.getX());
+			lat = toFixed(centroid.getY());
+			writeSignedVarint(lon);
+			writeSignedVarint(lat);
+		}
+		if(doc.getBbox() != null) {
+			final Envelope bbox = doc.getBbox();
+			writeSignedVarint(toFixed(bbox.getMinX()) - lon);
+			writeSignedVarint(toFixed(bbox.getMinY()) - lat);
+			writeSignedVarint(toFixed(bbox.getMaxX()) - lon);
+			writeSignedVarint(toFixed(bbox.getMaxY()) - lat);
+		}
+
+		if(doc.getStreet() != null) writeMap(doc.getStreet(), true);
+		if(doc.getCity() != null) writeMap(doc.getCity(), true);
+		if(doc.getCountry() != null) writeMap(doc.getCountry(), true);
+
+		final Set<Map<String, String>> context = doc.getContext();
+		writeVarint(context == null ? 0 : context.size());
+		if(context != null) {
+			for(Map<String, String> names : context) {
+				writeMap(names, true);
+			}
+		}
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	static long toFixed(double degrees) {
+		return Math.round(degrees * COORDINATE_SCALE);
+	}
+
+	/**
+	 * entries without value (hstore allows NULL) are skipped, the json conversion leaves them out as well
+	 *
+	 * @param internValues true if the values repeat between documents, e.g. names of streets and cities
+	 */
+	private void writeMap(Map<String, String> map, boolean internValues) throws IOException {
+		int size = 0;
+		for(String value : map.values()) {
+			if(value != null) size++;
+		}
+
+		writeVarint(size);
+		for(Map.Entry<String, String> entry : map.entrySet()) {
+			if(entry.getValue() == null) continue;
+			writeSymbol(entry.getKey());
+			if(internValues) {
+				writeSymbol(entry.getValue());
+			} else {
+				writeString(entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * writes 0 and the text for new strings, the string's number + 1 for known ones
+	 */
+	private void writeSymbol(String value) throws IOException {
+		final Integer id = strings.get(value);
+		if(id != null) {
+			writeVarint(id + 1);
+			return;
+		}
+
+		writeVarint(0);
+		writeString(value);
+		if(strings.size() < MAX_STRINGS) {
+			strings.put(value, strings.size());
+		}
+	}
+
+	private void writeString(String value) throws IOException {
+		final byte[] bytes = value.getBytes(Charsets.UTF_8);
+		writeVarint(bytes.length);
+		out.write(bytes);
+	}
+
+	private void writeSignedVarint(long value) throws IOException {
+		// zig zag encoding, small negative numbers stay small
+		writeVarint((value << 1) ^ (value >> 63));
+	}
+
+	private void writeVarint(long value) throws IOException {
+		while((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+}
@@ -0,0 +1,406 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * collects index/update/delete requests into bulk requests and sends them to elasticsearch asynchronously. A bulk is
+ * sent once it reaches a number of actions or a size in bytes, or when the flush interval elapsed. At most
+ * concurrentRequests bulks are in flight, further bulks block the caller until elasticsearch has caught up
+ * (backpressure). Items rejected by elasticsearch because it is overloaded or a shard or node is unavailable are
+ * retried with a later bulk, the delay before a retry doubles with every attempt. Other failures are not retried.
+ * <p/>
+ * Bulks and retries can reach elasticsearch in a different order than their actions were added. An ordered bulk
+ * indexer has one bulk in flight and resends failed items before any newer action, use it if the same document can
+ * be changed more than once, e.g. for updates.
+ *
+ * @author christoph
+ */
+@Slf4j
+public class BulkIndexer {
+	private static final int MAX_RETRIES = 3;
+	private static final long INITIAL_RETRY_DELAY_MILLIS = 500;
+	private static final long MAX_RETRY_DELAY_MILLIS = 10000;
+
+	/**
+	 * failures of single items or whole bulks that are worth retrying
+	 */
+	private static final String[] TEMPORARY_FAILURES = {"EsRejectedExecutionException", "UnavailableShardsException",
+			"NoNodeAvailableException", "ConnectTransportException", "NodeDisconnectedException", "NodeNotConnectedException"};
+
+	private final Client client;
+	private final String name;
+	private final int concurrentRequests;
+	private final boolean ordered;
+	/**
+	 * held by ordered bulk indexers while a bulk and its retries are sent
+	 */
+	private final Object sendLock = new Object();
+	private final int maxActions;
+	private final long maxBytes;
+	private final Semaphore inFlight;
+	private final ScheduledExecutorService scheduler;
+
+	private BulkRequest bulkRequest = new BulkRequest();
+
+	/**
+	 * failed items waiting to be sent again, they can be polled once their delay has elapsed. They are re-added by the
+	 * thread calling {@link #add(ActionRequest)} or {@link #flush()} or by the periodic flush, as callbacks of
+	 * elasticsearch must not block on the semaphore.
+	 */
+	private final DelayQueue<Retry> retries = new DelayQueue<Retry>();
+	private final Map<ActionRequest, Integer> attempts = Collections.synchronizedMap(new IdentityHashMap<ActionRequest, Integer>());
+
+	private final AtomicLong actionCount = new AtomicLong();
+	private final AtomicLong byteCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+	private final AtomicLong retryCount = new AtomicLong();
+	private final long startMillis = System.currentTimeMillis();
+
+	/**
+	 * bulk indexer with 4 concurrent requests of up to 10000 actions / 15 mb, flushed every 5 seconds
+	 */
+	public BulkIndexer(Client client, String name) {
+		this(client, name, 4, 10000, new ByteSizeValue(15, ByteSizeUnit.MB), TimeValue.timeValueSeconds(5));
+	}
+
+	/**
+	 * @param name               used for logging and thread names
+	 * @param concurrentRequests maximum number of bulk requests in flight
+	 * @param maxActions         number of actions that trigger a bulk request
+	 * @param maxSize            estimated request size that triggers a bulk request
+	 * @param flushInterval      time after which pending actions are sent regardless of their number, null to disable
+	 */
+	public BulkIndexer(Client client, String name, int concurrentRequests, int maxActions, ByteSizeValue maxSize, TimeValue flushInterval) {
+		this(client, name, concurrentRequests, maxActions, maxSize, flushInterval, false);
+	}
+
+	/**
+	 * @param ordered true to apply the actions in the order they were added, concurrentRequests is ignored then
+	 */
+	public BulkIndexer(Client client, String name, int concurrentRequests, int maxActions, ByteSizeValue maxSize, TimeValue flushInterval, boolean ordered) {
+		this.client = client;
+		this.name = name;
+		this.ordered = ordered;
+		this.concurrentRequests = ordered ? 1 : Math.max(1, concurrentRequests);
+		this.maxActions = maxActions;
+		this.maxBytes = maxSize.bytes();
+		this.inFlight = new Semaphore(this.concurrentRequests);
+
+		if(flushInterval != null && flushInterval.millis() > 0) {
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "photon-bulk-flush-" + BulkIndexer.this.name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			this.scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						requeueRetries();
+						sendPending();
+					} catch(RuntimeException e) {
+						log.error(String.format("[%s] periodic flush failed", BulkIndexer.this.name), e);
+					}
+				}
+			}, flushInterval.millis(), flushInterval.millis(), TimeUnit.MILLISECONDS);
+		} else {
+			this.scheduler = null;
+		}
+	}
+
+	/**
+	 * adds an index, update or delete request, blocks if the maximum number of bulk requests is in flight
+	 */
+	public void add(ActionRequest request) {
+		requeueRetries();
+
+		final boolean full;
+		synchronized(this) {
+			bulkRequest.add(request);
+			full = bulkRequest.numberOfActions() >= maxActions || bulkRequest.estimatedSizeInBytes() >= maxBytes;
+		}
+
+		if(full) {
+			sendPending();
+		}
+	}
+
+	/**
+	 * sends all pending actions and blocks until every bulk request (including retries) is completed
+	 */
+	public void flush() {
+		while(true) {
+			requeueRetries();
+			sendPending();
+			awaitInFlight();
+			// ordered bulk indexers have sent all retries together with their bulk
+			if(ordered || retries.isEmpty()) break;
+			awaitRetry();
+		}
+
+		final double actionsPerSecond = 1000d * actionCount.get() / Math.max(1, System.currentTimeMillis() - startMillis);
+		log.info(String.format("[%s] %d actions (%d mb) sent [%.1f/second], %d retried, %d failed", name, actionCount.get(), byteCount.get() / (1024 * 1024), actionsPerSecond, retryCount.get(), failureCount.get()));
+	}
+
+	/**
+	 * flushes and stops the periodic flushing
+	 */
+	public void close() {
+		flush();
+		if(scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	public long getActionCount() {
+		return actionCount.get();
+	}
+
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/**
+	 * @return number of bulk requests currently in flight
+	 */
+	public int getInFlightCount() {
+		return concurrentRequests - inFlight.availablePermits();
+	}
+
+	private void sendPending() {
+		if(ordered) {
+			// the pending bulk is taken while holding the lock, bulks are sent in the order they were filled
+			synchronized(sendLock) {
+				final BulkRequest pendingRequest = takePending();
+				if(pendingRequest != null) {
+					executeOrdered(pendingRequest);
+				}
+			}
+			return;
+		}
+
+		final BulkRequest pendingRequest = takePending();
+		if(pendingRequest != null) {
+			execute(pendingRequest);
+		}
+	}
+
+	/**
+	 * @return the pending bulk, null if there are no pending actions
+	 */
+	private synchronized BulkRequest takePending() {
+		if(bulkRequest.numberOfActions() == 0) return null;
+		final BulkRequest pendingRequest = bulkRequest;
+		bulkRequest = new BulkRequest();
+		return pendingRequest;
+	}
+
+	/**
+	 * sends the bulk and blocks until it and the retries of its failed items are completed, so no newer action is
+	 * sent before them
+	 */
+	private void executeOrdered(BulkRequest request) {
+		execute(request);
+		awaitInFlight();
+		while(!retries.isEmpty()) {
+			final BulkRequest retryRequest = new BulkRequest();
+			try {
+				retryRequest.add(retries.take().action);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("interrupted while waiting for bulk retries", e);
+			}
+			Retry retry;
+			while((retry = retries.poll()) != null) {
+				retryRequest.add(retry.action);
+			}
+			execute(retryRequest);
+			awaitInFlight();
+		}
+	}
+
+	/**
+	 * adds the failed items whose retry delay has elapsed to the pending bulk, ordered bulk indexers resend them with
+	 * {@link #executeOrdered(BulkRequest)} instead
+	 */
+	private void requeueRetries() {
+		if(ordered) return;
+
+		Retry retry;
+		while((retry = retries.poll()) != null) {
+			synchronized(this) {
+				bulkRequest.add(retry.action);
+			}
+		}
+	}
+
+	/**
+	 * blocks until the next retry is due and adds it to the pending bulk
+	 */
+	private void awaitRetry() {
+		try {
+			final Retry retry = retries.take();
+			synchronized(this) {
+				bulkRequest.add(retry.action);
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while waiting for bulk retries", e);
+		}
+	}
+
+	private void awaitInFlight() {
+		inFlight.acquireUninterruptibly(concurrentRequests);
+		inFlight.release(concurrentRequests);
+	}
+
+	private void execute(final BulkRequest request) {
+		inFlight.acquireUninterruptibly();
+		final long bytes = request.estimatedSizeInBytes();
+		try {
+			client.bulk(request, new ActionListener<BulkResponse>() {
+				@Override
+				public void onResponse(BulkResponse response) {
+					try {
+						actionCount.addAndGet(request.numberOfActions());
+						byteCount.addAndGet(bytes);
+						if(response.hasFailures()) {
+							handleFailures(request, response);
+						}
+					} finally {
+						inFlight.release();
+					}
+				}
+
+				@Override
+				public void onFailure(Throwable e) {
+					try {
+						final String message = ExceptionsHelper.detailedMessage(e);
+						if(isTemporary(message)) {
+							log.warn(String.format("[%s] bulk request with %d actions failed, retrying: %s", name, request.numberOfActions(), message));
+							for(ActionRequest action : request.requests()) {
+								retry(action, message);
+							}
+						} else {
+							log.error(String.format("[%s] bulk request with %d actions failed", name, request.numberOfActions()), e);
+							for(ActionRequest action : request.requests()) {
+								fail(action);
+							}
+						}
+					} finally {
+						inFlight.release();
+					}
+				}
+			});
+		} catch(RuntimeException e) {
+			inFlight.release();
+			throw e;
+		}
+	}
+
+	private void handleFailures(BulkRequest request, BulkResponse response) {
+		for(BulkItemResponse item : response.getItems()) {
+			final ActionRequest action = (ActionRequest) request.requests().get(item.getItemId());
+			if(!item.isFailed()) {
+				if(!attempts.isEmpty()) attempts.remove(action);
+				continue;
+			}
+
+			final String message = item.getFailureMessage();
+			if(isTemporary(message)) {
+				retry(action, message);
+			} else {
+				fail(action);
+				log.error(String.format("[%s] %s of %s failed: %s", name, item.getOpType(), item.getId(), message));
+			}
+		}
+	}
+
+	private void retry(ActionRequest action, String message) {
+		Integer attempt = attempts.get(action);
+		attempt = attempt == null ? 1 : attempt + 1;
+		if(attempt > MAX_RETRIES) {
+			attempts.remove(action);
+			failureCount.incrementAndGet();
+			log.error(String.format("[%s] giving up after %d retries: %s", name, MAX_RETRIES, message));
+			return;
+		}
+
+		attempts.put(action, attempt);
+		retryCount.incrementAndGet();
+		retries.add(new Retry(action, getRetryDelayMillis(attempt)));
+	}
+
+	private void fail(ActionRequest action) {
+		if(!attempts.isEmpty()) attempts.remove(action);
+		failureCount.incrementAndGet();
+	}
+
+	/**
+	 * @return delay before the given attempt, it doubles with every attempt
+	 */
+	static long getRetryDelayMillis(int attempt) {
+		return Math.min(MAX_RETRY_DELAY_MILLIS, INITIAL_RETRY_DELAY_MILLIS << Math.min(attempt - 1, 20));
+	}
+
+	/**
+	 * @param failureMessage failure of an item or detailed message of the exception a whole bulk failed with
+	 * @return true if elasticsearch was overloaded or a shard or node was unavailable
+	 */
+	static boolean isTemporary(String failureMessage) {
+		if(failureMessage == null) return false;
+		for(String failure : TEMPORARY_FAILURES) {
+			if(failureMessage.contains(failure)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * failed item that is sent again once its delay has elapsed
+	 */
+	private static class Retry implements Delayed {
+		private final ActionRequest action;
+		private final long dueNanos;
+
+		Retry(ActionRequest action, long delayMillis) {
+			this.action = action;
+			this.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			final long difference = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+			return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.vividsolutions.jts.geom.Envelope;
+import lombok.Data;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.search.SearchHit;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * caches search results in front of a {@link Searcher}. Autocompletion requests repeat the same prefixes very often,
+ * those are answered without asking elasticsearch. Entries expire after a while and are dropped when the index changes.
+ *
+ * @author christoph
+ */
+public class CachingSearcher {
+	/**
+	 * location bias is rounded to this many decimal places (~1km), the bias decays over 100km anyway
+	 */
+	private static final double COORDINATE_PRECISION = 100d;
+
+	private final Searcher searcher;
+	private final Cache<Key, SearchHit[]> cache;
+	private final boolean enabled;
+	/**
+	 * incremented by {@link #invalidate()}, results of searches started before are not cached
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * @param maxSize    maximum number of cached results, 0 disables caching
+	 * @param ttlSeconds time after which a result is dropped from the cache
+	 */
+	public CachingSearcher(Searcher searcher, long maxSize, long ttlSeconds) {
+		this.searcher = searcher;
+		this.enabled = maxSize > 0;
+		this.cache = CacheBuilder.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+				.concurrencyLevel(16)
+				.recordStats()
+				.build();
+	}
+
+	/**
+	 * see {@link Searcher#search(String, String, Double, Double, Envelope, Set, int)}
+	 */
+	public SearchHit[] search(String query, String lang, Double lon, Double lat, Envelope bbox, Set<String> countryCodes, int limit) {
+		if(!enabled) {
+			return searcher.search(query, lang, lon, lat, bbox, countryCodes, limit);
+		}
+
+		// search with the rounded location, all requests sharing a cache entry get the same results
+		final Double roundedLon = round(lon);
+		final Double roundedLat = round(lat);
+		final Key key = new Key(query.trim().toLowerCase(Locale.ENGLISH), lang, roundedLon, roundedLat, bbox, countryCodes, limit);
+		final SearchHit[] cached = cache.getIfPresent(key);
+		if(cached != null) {
+			return cached;
+		}
+
+		final long searchGeneration = generation.get();
+		final SearchResult result = searcher.searchResult(query, lang, roundedLon, roundedLat, bbox, countryCodes, limit);
+		put(key, result, searchGeneration);
+		return result.getHits();
+	}
+
+	/**
+	 * asynchronous version of {@link #search(String, String, Double, Double, Envelope, Set, int)}, cached results are
+	 * passed to the listener right away
+	 */
+	public void search(String query, String lang, Double lon, Double lat, Envelope bbox, Set<String> countryCodes, int limit, final ActionListener<SearchHit[]> listener) {
+		if(!enabled) {
+			searcher.search(query, lang, lon, lat, bbox, countryCodes, limit, listener);
+			return;
+		}
+
+		final Double roundedLon = round(lon);
+		final Double roundedLat = round(lat);
+		final Key key = new Key(query.trim().toLowerCase(Locale.ENGLISH), lang, roundedLon, roundedLat, bbox, countryCodes, limit);
+		final SearchHit[] cached = cache.getIfPresent(key);
+		if(cached != null) {
+			listener.onResponse(cached);
+			return;
+		}
+
+		final long searchGeneration = generation.get();
+		searcher.searchResult(query, lang, roundedLon, roundedLat, bbox, countryCodes, limit, new ActionListener<SearchResult>() {
+			@Override
+			public void onResponse(SearchResult result) {
+				put(key, result, searchGeneration);
+				listener.onResponse(result.getHits());
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				listener.onFailure(e);
+			}
+		});
+	}
+
+	/**
+	 * caches complete results of searches that were not overtaken by {@link #invalidate()}. Hits of timed out searches
+	 * miss what the slow shards would have found.
+	 */
+	private void put(Key key, SearchResult result, long searchGeneration) {
+		if(!result.isComplete() || generation.get() != searchGeneration) return;
+
+		cache.put(key, result.getHits());
+		if(generation.get() != searchGeneration) {
+			// invalidated while putting, the entry may have been put after the cache was cleared
+			cache.invalidate(key);
+		}
+	}
+
+	/**
+	 * drops all cached results, call whenever documents in the index changed
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+		cache.invalidateAll();
+	}
+
+	public CacheStats getStats() {
+		return cache.stats();
+	}
+
+	public long getSize() {
+		return cache.size();
+	}
+
+	private static Double round(Double coordinate) {
+		if(coordinate == null) return null;
+		return Math.round(coordinate * COORDINATE_PRECISION) / COORDINATE_PRECISION;
+	}
+
+	@Data
+	private static class Key {
+		final private String query;
+		final private String lang;
+		final private Double lon;
+		final private Double lat;
+		final private Envelope bbox;
+		final private Set<String> countryCodes;
+		final private int limit;
+	}
+}
@@ -0,0 +1,118 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import de.komoot.photon.importer.Tags;
+import de.komoot.photon.importer.osm.OSMTags;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * writes search hits as GeoJSON FeatureCollection directly to an output stream, without building an intermediate
+ * json object tree
+ *
+ * @author christoph
+ */
+public class GeoJsonWriter {
+	/** These properties are directly copied into the result */
+	private final static String[] KEYS_LANG_UNSPEC = {OSMTags.KEY_OSM_ID, OSMTags.KEY_OSM_VALUE, OSMTags.KEY_OSM_KEY, OSMTags.KEY_POSTCODE, OSMTags.KEY_HOUSENUMBER};
+
+	/** These properties will be translated before they are copied into the result */
+	private final static String[] KEYS_LANG_SPEC = {OSMTags.KEY_NAME, OSMTags.KEY_COUNTRY, OSMTags.KEY_CITY, OSMTags.KEY_STREET};
+
+	/**
+	 * source fields needed to write a feature in the given language, only those are fetched from elasticsearch
+	 */
+	static String[] getSourceFields(String lang) {
+		final String[] fields = new String[1 + KEYS_LANG_UNSPEC.length + 2 * KEYS_LANG_SPEC.length];
+		int i = 0;
+		fields[i++] = "coordinate";
+		for(String key : KEYS_LANG_UNSPEC) {
+			fields[i++] = key;
+		}
+		for(String key : KEYS_LANG_SPEC) {
+			fields[i++] = key + "." + lang;
+			fields[i++] = key + ".default";
+		}
+		return fields;
+	}
+
+	/**
+	 * thread safe and expensive to create, shared by all requests
+	 */
+	private final JsonFactory jsonFactory = new JsonFactory();
+
+	public GeoJsonWriter() {
+		// the servlet container owns the response stream
+		jsonFactory.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+	}
+
+	/**
+	 * @param lang   language of the localised properties
+	 * @param pretty indent the output, useful for debugging
+	 */
+	public void write(SearchHit[] hits, String lang, boolean pretty, OutputStream out) throws IOException {
+		final JsonGenerator generator = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+		if(pretty) {
+			generator.useDefaultPrettyPrinter();
+		}
+
+		generator.writeStartObject();
+		generator.writeStringField(Tags.KEY_TYPE, "FeatureCollection");
+		generator.writeArrayFieldStart("features");
+		for(SearchHit hit : hits) {
+			writeFeature(generator, hit.getSource(), lang);
+		}
+		generator.writeEndArray();
+		generator.writeEndObject();
+		generator.close(); // flushes, the target stays open
+	}
+
+	private static void writeFeature(JsonGenerator generator, Map<String, Object> source, String lang) throws IOException {
+		generator.writeStartObject();
+		generator.writeStringField(Tags.KEY_TYPE, Tags.VALUE_FEATURE);
+
+		final Map<String, Object> coordinate = (Map<String, Object>) source.get("coordinate");
+		generator.writeObjectFieldStart(Tags.KEY_GEOMETRY);
+		generator.writeStringField(Tags.KEY_TYPE, Tags.VALUE_POINT);
+		generator.writeArrayFieldStart(Tags.KEY_COORDINATES);
+		generator.writeNumber(((Number) coordinate.get(Tags.KEY_LON)).doubleValue());
+		generator.writeNumber(((Number) coordinate.get(Tags.KEY_LAT)).doubleValue());
+		generator.writeEndArray();
+		generator.writeEndObject();
+
+		generator.writeObjectFieldStart(Tags.KEY_PROPERTIES);
+		// language unspecific properties
+		for(String key : KEYS_LANG_UNSPEC) {
+			final Object value = source.get(key);
+			if(value instanceof Long || value instanceof Integer) {
+				generator.writeNumberField(key, ((Number) value).longValue());
+			} else if(value != null) {
+				generator.writeStringField(key, value.toString());
+			}
+		}
+
+		// language specific properties
+		for(String key : KEYS_LANG_SPEC) {
+			final String value = getLocalised(source, key, lang);
+			if(value != null) {
+				generator.writeStringField(key, value);
+			}
+		}
+		generator.writeEndObject();
+
+		generator.writeEndObject();
+	}
+
+	private static String getLocalised(Map<String, Object> source, String fieldName, String lang) {
+		final Map<String, String> map = (Map<String, String>) source.get(fieldName);
+		if(map == null) return null;
+
+		final String localised = map.get(lang);
+		return localised != null ? localised : map.get("default");
+	}
+}
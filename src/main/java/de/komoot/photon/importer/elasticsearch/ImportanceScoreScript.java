@@ -0,0 +1,29 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.script.AbstractDoubleSearchScript;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.NativeScriptFactory;
+
+import java.util.Map;
+
+/**
+ * native version of the script score <code>1 + doc['importance'].value * 40</code>
+ *
+ * @author christoph
+ */
+public class ImportanceScoreScript extends AbstractDoubleSearchScript {
+	public static final String NAME = "photon_importance";
+
+	@Override
+	public double runAsDouble() {
+		return 1 + docFieldDoubles("importance").getValue() * 40;
+	}
+
+	public static class Factory implements NativeScriptFactory {
+		@Override
+		public ExecutableScript newScript(@Nullable Map<String, Object> params) {
+			return new ImportanceScoreScript();
+		}
+	}
+}
@@ -1,13 +1,21 @@
 package de.komoot.photon.importer.elasticsearch;
 
+import com.google.common.collect.ImmutableMap;
 import de.komoot.photon.importer.Utils;
 import de.komoot.photon.importer.model.PhotonDoc;
 import lombok.extern.slf4j.Slf4j;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import org.elasticsearch.action.count.CountRequest;
 
 /**
@@ -17,49 +25,160 @@ import org.elasticsearch.action.count.CountRequest;
  */
 @Slf4j
 public class Importer implements de.komoot.photon.importer.Importer {
-	private int documentCount = 0;
-
-        private final String indexName = "photon";
+        private final String indexName;
         private final String indexType = "place";
 	private final Client esClient;
-	private BulkRequestBuilder bulkRequest;
+	private final BulkIndexer bulkIndexer;
+
+	/**
+	 * index settings changed for a bulk load with elasticsearch's defaults, which apply if neither the index nor the
+	 * node configures them
+	 */
+	private static final Map<String, String> BULK_LOAD_SETTINGS = ImmutableMap.of(
+			"index.refresh_interval", "1s",
+			"index.number_of_replicas", "1",
+			"index.translog.flush_threshold_size", "200mb",
+			"index.translog.flush_threshold_ops", "5000");
+
+	/**
+	 * values of the {@link #BULK_LOAD_SETTINGS} to restore after a bulk load, null if the index is not in bulk load mode
+	 */
+	private Map<String, String> servingSettings;
+	private long startMillis = System.currentTimeMillis();
+	private final AtomicLong added = new AtomicLong();
 
 	public Importer(Client esClient) {
+		this(esClient, new BulkIndexer(esClient, "import"), Server.ALIAS);
+	}
+
+	/**
+	 * @param bulkIndexer sends the documents to elasticsearch, use it to configure concurrency and bulk sizes. It is
+	 *                    closed by {@link #finish()}.
+	 * @param indexName   index or alias the documents are written to
+	 */
+	public Importer(Client esClient, BulkIndexer bulkIndexer, String indexName) {
 		this.esClient = esClient;
-		this.bulkRequest = esClient.prepareBulk();
+		this.bulkIndexer = bulkIndexer;
+		this.indexName = indexName;
+	}
+
+	/**
+	 * switches the index into bulk load mode until {@link #finish()}: no refreshes, no replicas and rare translog
+	 * flushes. Only useful for full imports, searches will not see new documents before the import is finished.
+	 */
+	public void startBulkLoad() {
+		final GetSettingsResponse settings = esClient.admin().indices().prepareGetSettings(indexName).execute().actionGet();
+		final Settings nodeSettings = esClient.admin().cluster().prepareNodesInfo("_local").setSettings(true).execute().actionGet().getNodes()[0].getSettings();
+		servingSettings = new LinkedHashMap<String, String>();
+		for(Map.Entry<String, String> setting : BULK_LOAD_SETTINGS.entrySet()) {
+			// elasticsearch 1.x cannot remove an index setting, unset ones are restored to the value they fell back to
+			final String value = settings.getSetting(indexName, setting.getKey());
+			servingSettings.put(setting.getKey(), value != null ? value : nodeSettings.get(setting.getKey(), setting.getValue()));
+		}
+
+		esClient.admin().indices().prepareUpdateSettings(indexName).setSettings(ImmutableSettings.settingsBuilder()
+				.put("index.refresh_interval", "-1")
+				.put("index.number_of_replicas", 0)
+				.put("index.translog.flush_threshold_size", "1gb")
+				.put("index.translog.flush_threshold_ops", 500000)).execute().actionGet();
+		startMillis = System.currentTimeMillis();
+		log.info(String.format("index %s switched to bulk load settings (serving settings: %s)", indexName, servingSettings));
 	}
 
         @Override
 	public void add(PhotonDoc doc) {
 		try {
-			this.bulkRequest.add(this.esClient.prepareIndex(indexName, indexType).
-                                setSource(Utils.convert(doc)).setId(String.valueOf(doc.getPlaceId())));
+			this.bulkIndexer.add(this.esClient.prepareIndex(indexName, indexType).
+                                setSource(Utils.convert(doc)).setId(String.valueOf(doc.getPlaceId())).request());
+			added.incrementAndGet();
 		} catch(IOException e) {
 			log.error("could not ", e);
 		}
-		this.documentCount += 1;
-		if(this.documentCount > 0 && this.documentCount % 10000 == 0) {
-			this.saveDocuments();
-		}
 	}
 
-	private void saveDocuments() {
-		if(this.documentCount < 1) return;
-
-		BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-		if(bulkResponse.hasFailures()) {
-			log.error("error while bulk import:" + bulkResponse.buildFailureMessage());
-		}
-		this.bulkRequest = this.esClient.prepareBulk();
+	/**
+	 * adds a document that is already serialized, e.g. read from a json dump
+	 *
+	 * @param id document id, null to let elasticsearch create one
+	 */
+	public void add(String id, BytesReference source) {
+		this.bulkIndexer.add(this.esClient.prepareIndex(indexName, indexType, id).setSource(source).request());
+		added.incrementAndGet();
 	}
 
         @Override
 	public void finish() {
-		this.saveDocuments();
-		this.documentCount = 0;
+		this.bulkIndexer.close();
+		log.info(String.format("indexing finished after %s", elapsed(startMillis)));
+
+		if(servingSettings != null) {
+			finishBulkLoad();
+		}
+	}
+
+	/**
+	 * restores the serving settings and merges the segments written during the bulk load
+	 */
+	private void finishBulkLoad() {
+		long phaseMillis = System.currentTimeMillis();
+		esClient.admin().indices().prepareUpdateSettings(indexName).setSettings(ImmutableSettings.settingsBuilder()
+				.put(servingSettings)).execute().actionGet();
+		esClient.admin().indices().prepareRefresh(indexName).execute().actionGet();
+		log.info(String.format("restored serving settings and refreshed index in %s", elapsed(phaseMillis)));
+
+		phaseMillis = System.currentTimeMillis();
+		esClient.admin().indices().prepareOptimize(indexName).setMaxNumSegments(5).setWaitForMerge(true).execute().actionGet();
+		log.info(String.format("merged segments in %s", elapsed(phaseMillis)));
+
+		servingSettings = null;
 	}
         
         public long count() {
                 return this.esClient.count(new CountRequest(indexName).types(indexType)).actionGet().getCount();
         }        
+
+	/**
+	 * checks that the imported index is able to serve searches: it must contain every document that was added and did
+	 * not fail, and searches for the names of indexed documents must find results. Names the search analyzer reduces to
+	 * no tokens at all (single characters, punctuation) cannot be found and are skipped. Call after {@link #finish()}.
+	 */
+	public boolean verify() {
+		esClient.admin().indices().prepareRefresh(indexName).execute().actionGet();
+		final long count = count();
+		final long expected = added.get() - bulkIndexer.getFailureCount();
+		// more documents than expected are possible if a bulk failed on the client side but was executed anyway
+		if(count == 0 || count < expected) {
+			log.error(String.format("index %s contains %d documents, expected %d (%d added, %d failed)", indexName, count, expected, added.get(), bulkIndexer.getFailureCount()));
+			return false;
+		}
+
+		final SearchHit[] hits = esClient.prepareSearch(indexName).setTypes(indexType).setQuery(QueryBuilders.matchAllQuery())
+				.setSize(10).execute().actionGet().getHits().getHits();
+		final Searcher searcher = new Searcher(esClient, indexName);
+		for(SearchHit hit : hits) {
+			final Object name = hit.getSource().get("name");
+			if(!(name instanceof Map) || ((Map<?, ?>) name).get("default") == null) continue;
+
+			final String query = String.valueOf(((Map<?, ?>) name).get("default"));
+			if(!isSearchable(query)) continue;
+			if(searcher.search(query, "en", null, null, 1, false).length == 0) {
+				log.error(String.format("smoke query '%s' on index %s did not return results", query, indexName));
+				return false;
+			}
+		}
+
+		log.info(String.format("verified index %s with %d documents", indexName, count));
+		return true;
+	}
+
+	/**
+	 * @return true if the analyzer of search queries produces tokens for the query
+	 */
+	private boolean isSearchable(String query) {
+		return !esClient.admin().indices().prepareAnalyze(indexName, query).setAnalyzer("search_stringanalyser").execute().actionGet().getTokens().isEmpty();
+	}
+
+	private static String elapsed(long startMillis) {
+		return String.format("%.1fs", (System.currentTimeMillis() - startMillis) / 1000d);
+	}
 }
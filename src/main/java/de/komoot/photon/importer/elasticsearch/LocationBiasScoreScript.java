@@ -0,0 +1,52 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.script.AbstractDoubleSearchScript;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.NativeScriptFactory;
+
+import java.util.Map;
+
+/**
+ * native version of the script score
+ * <code>dist = doc['coordinate'].distanceInKm(lat, lon); 1 / (0.5 - 0.5 * exp(-5*dist/maxDist))</code>, places close
+ * to the location get a much higher score, the bias fades out at maxDist km.
+ *
+ * @author christoph
+ */
+public class LocationBiasScoreScript extends AbstractDoubleSearchScript {
+	public static final String NAME = "photon_location_bias";
+
+	private final double lat;
+	private final double lon;
+	private final double maxDist;
+
+	public LocationBiasScoreScript(double lat, double lon, double maxDist) {
+		this.lat = lat;
+		this.lon = lon;
+		this.maxDist = maxDist;
+	}
+
+	@Override
+	public double runAsDouble() {
+		final double dist = ((ScriptDocValues.GeoPoints) doc().get("coordinate")).distanceInKm(lat, lon);
+		return 1 / (0.5 - 0.5 * Math.exp(-5 * dist / maxDist));
+	}
+
+	public static class Factory implements NativeScriptFactory {
+		@Override
+		public ExecutableScript newScript(@Nullable Map<String, Object> params) {
+			return new LocationBiasScoreScript(getParam(params, "lat"), getParam(params, "lon"), getParam(params, "maxDist"));
+		}
+
+		private static double getParam(Map<String, Object> params, String name) {
+			final Object value = params == null ? null : params.get(name);
+			if(!(value instanceof Number)) {
+				throw new ElasticsearchIllegalArgumentException("native script " + NAME + " requires the numeric parameter " + name);
+			}
+			return ((Number) value).doubleValue();
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.script.ScriptModule;
+
+/**
+ * registers photon's native score scripts, loaded from the classpath via es-plugin.properties
+ *
+ * @author christoph
+ */
+public class PhotonScoringPlugin extends AbstractPlugin {
+	@Override
+	public String name() {
+		return "photon-scoring";
+	}
+
+	@Override
+	public String description() {
+		return "native score scripts of photon";
+	}
+
+	public void onModule(ScriptModule module) {
+		module.registerScript(ImportanceScoreScript.NAME, ImportanceScoreScript.Factory.class);
+		module.registerScript(LocationBiasScoreScript.NAME, LocationBiasScoreScript.Factory.class);
+	}
+}
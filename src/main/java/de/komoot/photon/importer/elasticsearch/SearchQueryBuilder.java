@@ -0,0 +1,119 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import com.google.common.collect.ImmutableMap;
+import com.vividsolutions.jts.geom.Envelope;
+import de.komoot.photon.importer.Utils;
+import org.elasticsearch.index.query.AndFilterBuilder;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.MultiMatchQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.functionscore.FunctionScoreQueryBuilder;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilder;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * builds photon's search query with elasticsearch's query builders. Everything that does not depend on the search
+ * term or the location is created once per language and shared by all requests, builders are only read when a
+ * request is serialized.
+ *
+ * @author christoph
+ */
+class SearchQueryBuilder {
+	private static final FilterBuilder ALL = FilterBuilders.matchAllFilter();
+	private static final FilterBuilder MISSING_HOUSENUMBER = FilterBuilders.missingFilter("housenumber");
+	private static final ScoreFunctionBuilder IMPORTANCE = ScoreFunctionBuilders.scriptFunction(ImportanceScoreScript.NAME).lang("native");
+
+	private final Map<String, LanguageParts> languages;
+
+	/**
+	 * query parts that only depend on the language
+	 */
+	private static class LanguageParts {
+		final String nameNgramed;
+		final String nameRaw;
+		final String collectorRaw;
+		final String collector;
+		final FilterBuilder hasName;
+
+		LanguageParts(String lang) {
+			this.nameNgramed = "name." + lang + ".ngramed";
+			this.nameRaw = "name." + lang + ".raw";
+			this.collectorRaw = "collector." + lang + ".raw";
+			this.collector = "collector." + lang;
+			this.hasName = FilterBuilders.existsFilter(nameRaw);
+		}
+	}
+
+	SearchQueryBuilder() {
+		final ImmutableMap.Builder<String, LanguageParts> builder = ImmutableMap.builder();
+		for(String lang : Utils.languages) {
+			builder.put(lang, new LanguageParts(lang));
+		}
+		this.languages = builder.build();
+	}
+
+	/**
+	 * @param matchAll true if all terms of the query need to match a document
+	 * @param lon      longitude of the location bias, null if results should not be biased
+	 * @param lat      latitude of the location bias, null if results should not be biased
+	 */
+	QueryBuilder build(String query, String lang, Double lon, Double lat, boolean matchAll) {
+		return build(query, lang, lon, lat, matchAll, null, null);
+	}
+
+	/**
+	 * @param bbox         only places within this box are found, null for no restriction
+	 * @param countryCodes only places in these countries (ISO 3166 alpha-2) are found, null or empty for no restriction
+	 */
+	QueryBuilder build(String query, String lang, Double lon, Double lat, boolean matchAll, Envelope bbox, Set<String> countryCodes) {
+		LanguageParts parts = languages.get(lang);
+		if(parts == null) {
+			parts = new LanguageParts(lang);
+		}
+
+		final MultiMatchQueryBuilder multiMatch = QueryBuilders.multiMatchQuery(query)
+				.field(parts.nameNgramed, 3)
+				.field(parts.nameRaw, 10)
+				.field(parts.collectorRaw)
+				.field(parts.collector)
+				.fuzziness(1)
+				.prefixLength(3)
+				.analyzer("search_stringanalyser")
+				.minimumShouldMatch(matchAll ? "100%" : "-1");
+
+		// functions are added with a filter to keep the list form of the templates, even for a single function
+		final FunctionScoreQueryBuilder scored = QueryBuilders.functionScoreQuery(multiMatch);
+		if(lon != null && lat != null) {
+			scored.add(ALL, ScoreFunctionBuilders.scriptFunction(LocationBiasScoreScript.NAME).lang("native").param("lat", lat).param("lon", lon).param("maxDist", 100));
+		}
+		scored.add(ALL, IMPORTANCE).scoreMode("multiply").boostMode("multiply");
+
+		// documents with a house number are only found if the house number is part of the query
+		final FilterBuilder housenumberFilter = FilterBuilders.orFilter(
+				MISSING_HOUSENUMBER,
+				FilterBuilders.queryFilter(QueryBuilders.matchQuery("housenumber", query).analyzer("standard")),
+				parts.hasName);
+
+		if(bbox == null && (countryCodes == null || countryCodes.isEmpty())) {
+			return QueryBuilders.filteredQuery(scored, housenumberFilter);
+		}
+
+		// restrictions of regional clients are applied before scoring, the filters are cached per viewport / country set
+		final AndFilterBuilder filter = FilterBuilders.andFilter(housenumberFilter);
+		if(bbox != null) {
+			filter.add(FilterBuilders.geoBoundingBoxFilter("coordinate")
+					.topLeft(bbox.getMaxY(), bbox.getMinX())
+					.bottomRight(bbox.getMinY(), bbox.getMaxX())
+					.cache(true));
+		}
+		if(countryCodes != null && !countryCodes.isEmpty()) {
+			filter.add(FilterBuilders.termsFilter("countrycode", countryCodes).cache(true));
+		}
+		return QueryBuilders.filteredQuery(scored, filter);
+	}
+}
@@ -0,0 +1,16 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import lombok.Data;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * hits of a search and whether all shards answered in time
+ */
+@Data
+public class SearchResult {
+	final private SearchHit[] hits;
+	/**
+	 * false if the search timed out or shards failed, the hits are what the other shards found until then
+	 */
+	final private boolean complete;
+}
@@ -1,25 +1,27 @@
 package de.komoot.photon.importer.elasticsearch;
 
-import com.google.common.base.Function;
-import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Lists;
-import de.komoot.photon.importer.Tags;
-import de.komoot.photon.importer.osm.OSMTags;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringEscapeUtils;
-import org.apache.commons.lang3.text.StrSubstitutor;
+import com.vividsolutions.jts.geom.Envelope;
+import de.komoot.photon.importer.Utils;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.DistanceUnit;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
 
-import javax.annotation.Nullable;
-import java.util.Arrays;
-import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * date: 24.05.14
@@ -27,89 +29,204 @@ import java.util.Map;
  * @author christoph
  */
 public class Searcher {
-	private final String queryTemplate;
-	private final String queryLocationBiasTemplate;
+	private final SearchQueryBuilder queryBuilder = new SearchQueryBuilder();
+	private final Map<String, String[]> sourceFields;
 	private final Client client;
-	
-	/** These properties are directly copied into the result */
-	private final static String[] KEYS_LANG_UNSPEC = {OSMTags.KEY_OSM_ID, OSMTags.KEY_OSM_VALUE, OSMTags.KEY_OSM_KEY, OSMTags.KEY_POSTCODE, OSMTags.KEY_HOUSENUMBER};
-	
-	/** These properties will be translated before they are copied into the result */
-	private final static String[] KEYS_LANG_SPEC = {OSMTags.KEY_NAME, OSMTags.KEY_COUNTRY, OSMTags.KEY_CITY, OSMTags.KEY_STREET};
+	private final String indexName;
+	private TimeValue timeout;
 
 	public Searcher(Client client) {
+		this(client, Server.ALIAS);
+	}
+
+	/**
+	 * @param indexName index or alias to search in
+	 */
+	public Searcher(Client client, String indexName) {
 		this.client = client;
-		try {
-			final ClassLoader loader = Thread.currentThread().getContextClassLoader();
-			queryTemplate = IOUtils.toString(loader.getResourceAsStream("query.json"), "UTF-8");
-			queryLocationBiasTemplate = IOUtils.toString(loader.getResourceAsStream("query_location_bias.json"), "UTF-8");
-		} catch(Exception e) {
-			throw new RuntimeException("cannot access query templates", e);
+		this.indexName = indexName;
+
+		final ImmutableMap.Builder<String, String[]> builder = ImmutableMap.builder();
+		for(String lang : Utils.languages) {
+			builder.put(lang, GeoJsonWriter.getSourceFields(lang));
 		}
+		this.sourceFields = builder.build();
 	}
 
-	public List<JSONObject> search(String query, String lang, Double lon, Double lat, int limit, boolean matchAll) {
-		final ImmutableMap.Builder<String, Object> params = ImmutableMap.<String, Object>builder()
-				.put("query", StringEscapeUtils.escapeJson(query))
-				.put("lang", lang)
-				.put("should_match", matchAll ? "100%" : "-1");
-		if(lon != null) params.put("lon", lon);
-		if(lat != null) params.put("lat", lat);
+	/**
+	 * @param timeout time elasticsearch may take for a search, shards return what they found until then. The search
+	 *                methods throw an {@link ElasticsearchTimeoutException} if there is no response after this time.
+	 *                null (default) waits as long as it takes.
+	 */
+	public void setTimeout(TimeValue timeout) {
+		this.timeout = timeout;
+	}
 
-		StrSubstitutor sub = new StrSubstitutor(params.build(), "${", "}");
-		if(lon != null && lat != null) {
-			query = sub.replace(queryLocationBiasTemplate);
-		} else {
-			query = sub.replace(queryTemplate);
-		}
+	public SearchHit[] search(String query, String lang, Double lon, Double lat, int limit, boolean matchAll) {
+		SearchResponse response = get(prepareSearch(query, lang, lon, lat, null, null, limit, matchAll).execute());
+		return response.getHits().getHits();
+	}
 
-		SearchResponse response = client.prepareSearch("photon").setSearchType(SearchType.QUERY_AND_FETCH).setQuery(query).setSize(limit).execute().actionGet();
-		return convert(response.getHits().getHits(), lang);
+	/**
+	 * searches for documents matching all terms of the query and, in the same request, for documents matching only
+	 * some of them. The latter are only returned if there is no document matching all terms.
+	 */
+	public SearchHit[] search(String query, String lang, Double lon, Double lat, int limit) {
+		return search(query, lang, lon, lat, null, null, limit);
 	}
 
-	private List<JSONObject> convert(SearchHit[] hits, final String lang) {
-		return Lists.transform(Arrays.asList(hits), new Function<SearchHit, JSONObject>() {
-			@Nullable
+	/**
+	 * see {@link #search(String, String, Double, Double, int)}
+	 *
+	 * @param bbox         only places within this box are found, null for no restriction
+	 * @param countryCodes only places in these countries (ISO 3166 alpha-2) are found, null or empty for no restriction
+	 */
+	public SearchHit[] search(String query, String lang, Double lon, Double lat, Envelope bbox, Set<String> countryCodes, int limit) {
+		return searchResult(query, lang, lon, lat, bbox, countryCodes, limit).getHits();
+	}
+
+	/**
+	 * like {@link #search(String, String, Double, Double, Envelope, Set, int)}, also tells whether the hits are complete
+	 */
+	public SearchResult searchResult(String query, String lang, Double lon, Double lat, Envelope bbox, Set<String> countryCodes, int limit) {
+		return getResult(get(prepareMultiSearch(query, lang, lon, lat, bbox, countryCodes, limit).execute()));
+	}
+
+	/**
+	 * asynchronous version of {@link #search(String, String, Double, Double, Envelope, Set, int)}, the calling thread
+	 * does not wait for elasticsearch. The listener is called on an elasticsearch thread.
+	 */
+	public void search(String query, String lang, Double lon, Double lat, Envelope bbox, Set<String> countryCodes, int limit, final ActionListener<SearchHit[]> listener) {
+		searchResult(query, lang, lon, lat, bbox, countryCodes, limit, new ActionListener<SearchResult>() {
 			@Override
-			public JSONObject apply(@Nullable SearchHit hit) {
-				final Map<String, Object> source = hit.getSource();
-
-				final JSONObject feature = new JSONObject();
-				feature.put(Tags.KEY_TYPE, Tags.VALUE_FEATURE);
-				feature.put(Tags.KEY_GEOMETRY, getPoint(source));
-
-				final JSONObject properties = new JSONObject();
-				// language unspecific properties
-				for(String key : KEYS_LANG_UNSPEC) {
-					if(source.containsKey(key))
-						properties.put(key, source.get(key));
-				}
+			public void onResponse(SearchResult result) {
+				listener.onResponse(result.getHits());
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				listener.onFailure(e);
+			}
+		});
+	}
 
-				// language specific properties
-				for(String key : KEYS_LANG_SPEC) {
-					if(source.containsKey(key))
-						properties.put(key, getLocalised(source, key, lang));
+	/**
+	 * asynchronous version of {@link #searchResult(String, String, Double, Double, Envelope, Set, int)}
+	 */
+	public void searchResult(String query, String lang, Double lon, Double lat, Envelope bbox, Set<String> countryCodes, int limit, final ActionListener<SearchResult> listener) {
+		prepareMultiSearch(query, lang, lon, lat, bbox, countryCodes, limit).execute(new ActionListener<MultiSearchResponse>() {
+			@Override
+			public void onResponse(MultiSearchResponse response) {
+				final SearchResult result;
+				try {
+					result = getResult(response);
+				} catch(RuntimeException e) {
+					listener.onFailure(e);
+					return;
 				}
-				feature.put(Tags.KEY_PROPERTIES, properties);
+				listener.onResponse(result);
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				listener.onFailure(e);
+			}
+		});
+	}
+
+	private MultiSearchRequestBuilder prepareMultiSearch(String query, String lang, Double lon, Double lat, Envelope bbox, Set<String> countryCodes, int limit) {
+		return client.prepareMultiSearch()
+				.add(prepareSearch(query, lang, lon, lat, bbox, countryCodes, limit, true))
+				.add(prepareSearch(query, lang, lon, lat, bbox, countryCodes, limit, false));
+	}
+
+	/**
+	 * @return hits of the first search that found something, incomplete if any search up to that one was
+	 */
+	private static SearchResult getResult(MultiSearchResponse response) {
+		SearchHit[] hits = new SearchHit[0];
+		boolean complete = true;
+		for(MultiSearchResponse.Item item : response.getResponses()) {
+			if(item.isFailure()) {
+				throw new RuntimeException("search failed: " + item.getFailureMessage());
+			}
+
+			final SearchResponse itemResponse = item.getResponse();
+			complete &= !itemResponse.isTimedOut() && itemResponse.getFailedShards() == 0;
+			hits = itemResponse.getHits().getHits();
+			if(hits.length > 0) break;
+		}
+		return new SearchResult(hits, complete);
+	}
+
+	/**
+	 * finds the places closest to a location, nearest first. Every place carries its street and city, so the nearest
+	 * house number or street also names the enclosing city.
+	 *
+	 * @param radiusKm places further away are not returned, must be greater than 0
+	 * @param limit    maximum number of places, must be greater than 0
+	 */
+	public SearchHit[] reverse(double lon, double lat, double radiusKm, String lang, int limit) {
+		return get(prepareReverse(lon, lat, radiusKm, lang, limit).execute()).getHits().getHits();
+	}
 
-				return feature;
+	/**
+	 * asynchronous version of {@link #reverse(double, double, double, String, int)}, the listener is called on an
+	 * elasticsearch thread
+	 */
+	public void reverse(double lon, double lat, double radiusKm, String lang, int limit, final ActionListener<SearchHit[]> listener) {
+		prepareReverse(lon, lat, radiusKm, lang, limit).execute(new ActionListener<SearchResponse>() {
+			@Override
+			public void onResponse(SearchResponse response) {
+				listener.onResponse(response.getHits().getHits());
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				listener.onFailure(e);
 			}
 		});
 	}
 
-	private static JSONObject getPoint(Map<String, Object> source) {
-		final Map<String, Double> coordinate = (Map<String, Double>) source.get("coordinate");
+	private SearchRequestBuilder prepareReverse(double lon, double lat, double radiusKm, String lang, int limit) {
+		if(!(radiusKm > 0)) {
+			throw new IllegalArgumentException("reverse geocoding radius must be greater than 0, got " + radiusKm);
+		}
+		if(limit <= 0) {
+			throw new IllegalArgumentException("reverse geocoding limit must be greater than 0, got " + limit);
+		}
 
-		JSONObject point = new JSONObject();
-		point.put(Tags.KEY_TYPE, Tags.VALUE_POINT);
-		point.put(Tags.KEY_COORDINATES, new JSONArray("[" + coordinate.get(Tags.KEY_LON) + "," + coordinate.get(Tags.KEY_LAT) + "]"));
+		final SearchRequestBuilder request = client.prepareSearch(indexName).setSearchType(SearchType.QUERY_AND_FETCH)
+				.setQuery(QueryBuilders.constantScoreQuery(FilterBuilders.geoDistanceFilter("coordinate")
+						.point(lat, lon).distance(radiusKm, DistanceUnit.KILOMETERS)))
+				.addSort(SortBuilders.geoDistanceSort("coordinate").point(lat, lon).order(SortOrder.ASC))
+				.setSize(limit)
+				.setFetchSource(getSourceFields(lang), null);
+		if(timeout != null) {
+			request.setTimeout(timeout);
+		}
+		return request;
+	}
+
+	private SearchRequestBuilder prepareSearch(String query, String lang, Double lon, Double lat, Envelope bbox, Set<String> countryCodes, int limit, boolean matchAll) {
+		final SearchRequestBuilder request = client.prepareSearch(indexName).setSearchType(SearchType.QUERY_AND_FETCH)
+				.setQuery(queryBuilder.build(query, lang, lon, lat, matchAll, bbox, countryCodes)).setSize(limit)
+				.setFetchSource(getSourceFields(lang), null);
+		if(timeout != null) {
+			request.setTimeout(timeout);
+		}
+		return request;
+	}
 
-		return point;
+	private <T> T get(ListenableActionFuture<T> future) {
+		return timeout != null ? future.actionGet(timeout) : future.actionGet();
 	}
 
-	private static String getLocalised(Map<String, Object> source, String fieldName, String lang) {
-		final Map<String, String> map = (Map<String, String>) source.get(fieldName);
-		if(map == null) return null;
-		return Objects.firstNonNull(map.get(lang), map.get("default"));
+	/**
+	 * other languages and the extent are filtered out on the shards, hits only carry what the response needs
+	 */
+	private String[] getSourceFields(String lang) {
+		final String[] fields = sourceFields.get(lang);
+		return fields != null ? fields : GeoJsonWriter.getSourceFields(lang);
 	}
 }
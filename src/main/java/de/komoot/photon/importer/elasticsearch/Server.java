@@ -1,17 +1,16 @@
 package de.komoot.photon.importer.elasticsearch;
 
 import lombok.extern.slf4j.Slf4j;
-import net.lingala.zip4j.core.ZipFile;
-import net.lingala.zip4j.exception.ZipException;
-import net.lingala.zip4j.model.ZipParameters;
-import net.lingala.zip4j.util.Zip4jConstants;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.action.admin.cluster.snapshots.create.CreateSnapshotResponse;
-import org.elasticsearch.action.admin.cluster.snapshots.get.GetSnapshotsResponse;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.RestoreMetaData;
+import org.elasticsearch.cluster.metadata.SnapshotId;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
@@ -19,14 +18,23 @@ import org.elasticsearch.env.Environment;
 import org.elasticsearch.indices.IndexMissingException;
 import org.elasticsearch.node.Node;
 import org.elasticsearch.plugins.PluginManager;
+import org.elasticsearch.snapshots.SnapshotInfo;
+import org.elasticsearch.snapshots.SnapshotState;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.elasticsearch.node.NodeBuilder;
 import static org.elasticsearch.node.NodeBuilder.nodeBuilder;
@@ -41,6 +49,18 @@ public class Server {
 
 	private Node esNode;
 	private static final String clusterName = "photon";        
+	/**
+	 * name under which the photon index is searched and updated, it points to a versioned index
+	 */
+	public static final String ALIAS = "photon";
+	/**
+	 * restores taking longer are considered failed
+	 */
+	private static final long RESTORE_TIMEOUT_MILLIS = TimeUnit.HOURS.toMillis(6);
+	/**
+	 * a restore has failed when shards are missing and none is recovering for this long
+	 */
+	private static final long RESTORE_STALL_MILLIS = TimeUnit.SECONDS.toMillis(30);
         private File esDirectory;        
 	private File dumpDirectory;
 	private File updateDirectory;
@@ -107,116 +127,174 @@ public class Server {
 		this.esNode.close();
 	}
 
+	/**
+	 * snapshots the index behind the {@link #ALIAS} and packs the snapshot repository into dumps/[dumpName].zip
+	 */
 	public void createSnapshot(String dumpName) {
-		log.info(String.format("Create snapshot '%s' in %s", dumpName, this.dumpDirectory.getAbsolutePath()));
-
 		final File dumpLocation = new File(this.dumpDirectory, dumpName);
-		dumpLocation.mkdir();
-		this.esNode.client().admin().cluster().putRepository(this.getClient().admin().cluster().preparePutRepository(dumpName)
-				.setSettings(ImmutableSettings.settingsBuilder().put("compress", "true")
-						.put("location", dumpLocation.getAbsolutePath())).setType("fs").request()).actionGet();
-
-		this.getClient().admin().cluster().createSnapshot(this.getClient().admin().cluster().
-				prepareCreateSnapshot(dumpName, dumpName).setIndices("photon").request(), new ActionListener<CreateSnapshotResponse>() {
-			@Override
-			public void onResponse(CreateSnapshotResponse createSnapshotResponse) {
-				try {
-					ZipFile zipFile = new ZipFile(dumpLocation + ".zip");
-					ZipParameters parameters = new ZipParameters();
-					parameters.setCompressionMethod(Zip4jConstants.COMP_DEFLATE);
-					parameters.setCompressionLevel(Zip4jConstants.DEFLATE_LEVEL_NORMAL);
-					zipFile.addFolder(dumpLocation, parameters);
-					dumpLocation.delete();
-
-					log.info(String.format("Created snapshot: %s.zip", dumpLocation));
-				} catch(ZipException e) {
-					log.error("error creating zip file of snapshot", e);
-				}
-			}
+		log.info(String.format("Create snapshot '%s' in %s", dumpName, dumpLocation.getAbsolutePath()));
 
-			@Override
-			public void onFailure(Throwable e) {
-				log.error("error creating snapshot", e);
+		final Client client = this.getClient();
+		registerRepository(dumpName, dumpLocation);
+		try {
+			final Set<String> indices = getAliasedIndices();
+			final CreateSnapshotResponse response = client.admin().cluster().prepareCreateSnapshot(dumpName, dumpName)
+					.setIndices(indices.isEmpty() ? new String[]{ALIAS} : indices.toArray(new String[indices.size()]))
+					.setWaitForCompletion(true).execute().actionGet();
+			final SnapshotInfo info = response.getSnapshotInfo();
+			if(info.state() != SnapshotState.SUCCESS) {
+				throw new RuntimeException(String.format("snapshot %s failed: %s (%d of %d shards)", dumpName, info.reason(), info.successfulShards(), info.totalShards()));
 			}
-		});
-	}
 
-	public void importSnapshot(String dumpUrl, String dumpName) {
-		File dump = new File(this.tempDirectory, dumpName + ".zip");
-		String dumpLocation = "";
-		try {
-			FileUtils.copyFile(new File(new URL(dumpUrl).toURI()), dump);
-		} catch(Exception e) {
-			log.error("Error while loading dump (Is this the correct dump location?)", e);
+			final long startMillis = System.currentTimeMillis();
+			SnapshotArchive.zip(dumpLocation, new File(this.dumpDirectory, dumpName + ".zip"), Runtime.getRuntime().availableProcessors());
+			FileUtils.deleteDirectory(dumpLocation);
+			log.info(String.format("Created snapshot: %s.zip, packed in %ds", dumpLocation, (System.currentTimeMillis() - startMillis) / 1000));
+		} catch(IOException e) {
+			log.error("error creating zip file of snapshot", e);
+		} finally {
+			client.admin().cluster().prepareDeleteRepository(dumpName).execute().actionGet();
 		}
+	}
 
+	/**
+	 * restores a snapshot created by {@link #createSnapshot(String)} into a new index and points the {@link #ALIAS}
+	 * to it once all its primary shards are recovered. Local archives are extracted in parallel, remote ones while
+	 * they are downloaded.
+	 *
+	 * @param dumpUrl url of the zipped snapshot repository
+	 */
+	public void importSnapshot(String dumpUrl) {
+		final URL url;
 		try {
-			ZipFile dumpZip = new ZipFile(dump);
-			dumpLocation = this.importDirectory.getAbsolutePath() + dumpName;
-			dumpZip.extractAll(dumpLocation);
-		} catch(ZipException e) {
-
-			log.error("Can´t unzip dump", e);
+			url = new URL(dumpUrl);
+		} catch(MalformedURLException e) {
+			throw new RuntimeException("invalid snapshot url", e);
 		}
-		this.getClient().admin().cluster().getSnapshots(this.getClient().admin().cluster().prepareGetSnapshots(dumpLocation).setSnapshots(dumpName).request(), new ActionListener<GetSnapshotsResponse>() {
-			@Override
-			public void onResponse(GetSnapshotsResponse getSnapshotsResponse) {
-				log.info("Import done!");
-			}
 
-			@Override
-			public void onFailure(Throwable e) {
-				log.error("error creating snapshot", e);
+		final String name = new File(url.getPath()).getName().replaceFirst("\\.zip$", "");
+		final File extracted = new File(this.importDirectory, name);
+		try {
+			restoreSnapshot(dumpUrl, url, name, extracted);
+		} finally {
+			try {
+				FileUtils.deleteDirectory(extracted);
+			} catch(IOException e) {
+				log.warn("cannot delete extracted snapshot " + extracted, e);
 			}
-		});
+		}
 	}
 
-	public void importSnapshot(String urlString) {
-		URL url = null;
+	private void restoreSnapshot(String dumpUrl, URL url, String name, File extracted) {
+		long startMillis = System.currentTimeMillis();
 		try {
-			url = new URL(urlString);
-		} catch(MalformedURLException e) {
+			FileUtils.deleteDirectory(extracted);
+			if("file".equals(url.getProtocol())) {
+				SnapshotArchive.extract(new File(url.toURI()), extracted, Runtime.getRuntime().availableProcessors());
+			} else {
+				SnapshotArchive.extract(url.openStream(), extracted);
+			}
+		} catch(IOException e) {
+			throw new RuntimeException("error extracting snapshot (is this the correct dump location?)", e);
+		} catch(URISyntaxException e) {
 			throw new RuntimeException("invalid snapshot url", e);
 		}
-		File file;
+		log.info(String.format("extracted snapshot %s in %ds", dumpUrl, (System.currentTimeMillis() - startMillis) / 1000));
+
+		final File repositoryLocation = findRepository(extracted);
+		if(repositoryLocation == null) {
+			throw new RuntimeException("archive does not contain a snapshot repository: " + dumpUrl);
+		}
+
+		final Client client = this.getClient();
+		final String repository = "import_" + name;
+		registerRepository(repository, repositoryLocation);
 		try {
-			file = new File(url.toURI());
-		} catch(Exception e) {
-			// url did not refer to a local file, download it first to unzip
-			try {
-				file = File.createTempFile("temp-file-name", ".tmp");
-				IOUtils.copyLarge(url.openStream(), new FileOutputStream(file));
-			} catch(IOException ioe) {
-				throw new RuntimeException("cannot create temp file for snapshot", ioe);
+			final List<SnapshotInfo> snapshots = client.admin().cluster().prepareGetSnapshots(repository).execute().actionGet().getSnapshots();
+			if(snapshots.isEmpty() || snapshots.get(snapshots.size() - 1).indices().isEmpty()) {
+				throw new RuntimeException("snapshot repository is empty: " + dumpUrl);
 			}
+			final SnapshotInfo snapshot = snapshots.get(snapshots.size() - 1);
+			final String snapshotIndex = snapshot.indices().get(0);
+			final String indexName = newIndexName();
+
+			startMillis = System.currentTimeMillis();
+			client.admin().cluster().prepareRestoreSnapshot(repository, snapshot.name())
+					.setIndices(snapshotIndex)
+					.setRenamePattern(Pattern.quote(snapshotIndex)).setRenameReplacement(indexName)
+					.setWaitForCompletion(false).execute().actionGet();
+			waitForRecovery(new SnapshotId(repository, snapshot.name()), indexName, snapshot.totalShards());
+			log.info(String.format("restored snapshot %s into index %s in %ds", snapshot.name(), indexName, (System.currentTimeMillis() - startMillis) / 1000));
+
+			switchAlias(indexName);
+		} finally {
+			client.admin().cluster().prepareDeleteRepository(repository).execute().actionGet();
 		}
+	}
 
-		String dumpLocation;
-		String dumpName = "photon_snapshot_2014_05";
-		try {
-			ZipFile dumpZip = new ZipFile(file);
-			dumpLocation = this.importDirectory.getAbsolutePath();
-			dumpZip.extractAll(dumpLocation);
-		} catch(ZipException e) {
-			throw new RuntimeException("error unzipping snapshot", e);
+	private void registerRepository(String repository, File location) {
+		this.getClient().admin().cluster().preparePutRepository(repository).setType("fs")
+				.setSettings(ImmutableSettings.settingsBuilder().put("compress", "true").put("location", location.getAbsolutePath()))
+				.execute().actionGet();
+	}
+
+	/**
+	 * @return directory containing the repository's index file, null if there is none
+	 */
+	private static File findRepository(File directory) {
+		if(new File(directory, "index").isFile()) return directory;
+
+		final File[] children = directory.listFiles();
+		if(children == null) return null;
+		for(File child : children) {
+			if(child.isDirectory() && new File(child, "index").isFile()) return child;
 		}
+		return null;
+	}
 
-		String repository = dumpLocation + "/" + dumpName;
-		String snapshot = dumpName;
+	/**
+	 * blocks until all primary shards of the index are recovered, progress is logged every few seconds. The partly
+	 * restored index is deleted if the restore fails or does not finish within {@link #RESTORE_TIMEOUT_MILLIS}.
+	 */
+	private void waitForRecovery(SnapshotId snapshot, String indexName, int shards) {
+		final long deadline = System.currentTimeMillis() + RESTORE_TIMEOUT_MILLIS;
+		long stalledSince = 0;
+		while(true) {
+			final ClusterHealthResponse health = this.getClient().admin().cluster().prepareHealth(indexName)
+					.setWaitForYellowStatus().setTimeout(TimeValue.timeValueSeconds(5)).execute().actionGet();
+			if(health.getStatus() != ClusterHealthStatus.RED && health.getInitializingShards() == 0) {
+				return;
+			}
 
-		this.getClient().admin().cluster().getSnapshots(this.getClient().admin().cluster().prepareGetSnapshots(repository).setSnapshots(snapshot).request(), new ActionListener<GetSnapshotsResponse>() {
-			@Override
-			public void onResponse(GetSnapshotsResponse getSnapshotsResponse) {
-				log.info("Import done!");
+			if(health.getStatus() == ClusterHealthStatus.RED && health.getInitializingShards() == 0) {
+				// elasticsearch keeps the restore running when a shard cannot be restored, its shard just stays unassigned
+				final RestoreMetaData.Entry restore = getRestore(snapshot);
+				if(stalledSince == 0) stalledSince = System.currentTimeMillis();
+				if(restore == null || restore.state() == RestoreMetaData.State.FAILURE || System.currentTimeMillis() - stalledSince > RESTORE_STALL_MILLIS) {
+					deleteIndex(indexName);
+					throw new RuntimeException(String.format("restoring snapshot %s failed, %d of %d shards were recovered", snapshot.getSnapshot(), health.getActivePrimaryShards(), shards));
+				}
+			} else {
+				stalledSince = 0;
 			}
 
-			@Override
-			public void onFailure(Throwable e) {
-				log.error("error creating snapshot", e);
+			if(System.currentTimeMillis() > deadline) {
+				deleteIndex(indexName);
+				throw new RuntimeException(String.format("restoring snapshot %s did not finish within %d minutes", snapshot.getSnapshot(), TimeUnit.MILLISECONDS.toMinutes(RESTORE_TIMEOUT_MILLIS)));
 			}
-		});
+			log.info(String.format("restoring %s: %d of %d shards recovered, %d recovering", indexName, health.getActivePrimaryShards(), shards, health.getInitializingShards()));
+		}
+	}
+
+	/**
+	 * @return state of the snapshot's restore, null if it is not running anymore
+	 */
+	private RestoreMetaData.Entry getRestore(SnapshotId snapshot) {
+		final RestoreMetaData restores = this.getClient().admin().cluster().prepareState().execute().actionGet().getState().metaData().custom(RestoreMetaData.TYPE);
+		return restores == null ? null : restores.snapshot(snapshot);
 	}
 
+
 	/**
 	 * returns an elasticsearch client
 	 */
@@ -248,24 +326,107 @@ public class Server {
 		return mainDirectory;
 	}
 
+	/**
+	 * deletes all photon indices and creates a new and empty one behind the {@link #ALIAS}
+	 */
 	public void recreateIndex() {
 		deleteIndex();
+		switchAlias(createIndex());
+	}
+
+	/**
+	 * creates a new, empty index with photon's settings and mappings. Its name is versioned with the current time, so
+	 * it can be filled while searches are still served from the index behind the {@link #ALIAS}.
+	 *
+	 * @return name of the new index
+	 */
+	public String createIndex() {
+		final String indexName = newIndexName();
 
 		final Client client = this.getClient();
 		final InputStream mappings = Thread.currentThread().getContextClassLoader().getResourceAsStream("mappings.json");
 		final InputStream index_settings = Thread.currentThread().getContextClassLoader().getResourceAsStream("index_settings.json");
 
 		try {
-			client.admin().indices().prepareCreate("photon").setSettings(IOUtils.toString(index_settings)).execute().actionGet();
-			client.admin().indices().preparePutMapping("photon").setType("place").setSource(IOUtils.toString(mappings)).execute().actionGet();
+			client.admin().indices().prepareCreate(indexName).setSettings(IOUtils.toString(index_settings)).execute().actionGet();
+			client.admin().indices().preparePutMapping(indexName).setType("place").setSource(IOUtils.toString(mappings)).execute().actionGet();
 		} catch(IOException e) {
 			log.error("cannot setup index, elastic search config files not readable", e);
 		}
+
+		log.info(String.format("created index %s", indexName));
+		return indexName;
 	}
 
+	private static String newIndexName() {
+		return ALIAS + "_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+	}
+
+	/**
+	 * atomically points the {@link #ALIAS} to the given index and deletes the indices it pointed to before
+	 */
+	public void switchAlias(String indexName) {
+		final Client client = this.getClient();
+		final Set<String> previousIndices = getAliasedIndices();
+
+		if(previousIndices.isEmpty() && client.admin().indices().prepareExists(ALIAS).execute().actionGet().isExists()) {
+			// index of an older photon version that is named like the alias, cannot be swapped atomically
+			log.warn(String.format("deleting index %s to replace it by an alias", ALIAS));
+			client.admin().indices().prepareDelete(ALIAS).execute().actionGet();
+		}
+
+		final IndicesAliasesRequestBuilder aliases = client.admin().indices().prepareAliases().addAlias(indexName, ALIAS);
+		for(String previousIndex : previousIndices) {
+			if(!previousIndex.equals(indexName)) {
+				aliases.removeAlias(previousIndex, ALIAS);
+			}
+		}
+		aliases.execute().actionGet();
+		log.info(String.format("alias %s now points to %s", ALIAS, indexName));
+
+		for(String previousIndex : previousIndices) {
+			if(!previousIndex.equals(indexName)) {
+				client.admin().indices().prepareDelete(previousIndex).execute().actionGet();
+				log.info(String.format("deleted previous index %s", previousIndex));
+			}
+		}
+	}
+
+	/**
+	 * @return names of the indices behind the {@link #ALIAS}
+	 */
+	private Set<String> getAliasedIndices() {
+		final Set<String> indices = new HashSet<String>();
+		final Iterator<String> iterator = this.getClient().admin().indices().prepareGetAliases(ALIAS).execute().actionGet().getAliases().keysIt();
+		while(iterator.hasNext()) {
+			indices.add(iterator.next());
+		}
+		return indices;
+	}
+
+	/**
+	 * deletes a single index, e.g. one that failed to import
+	 */
+	public void deleteIndex(String indexName) {
+		try {
+			this.getClient().admin().indices().prepareDelete(indexName).execute().actionGet();
+			log.info(String.format("deleted index %s", indexName));
+		} catch(IndexMissingException e) {
+			// index was not created
+		}
+	}
+
+	/**
+	 * deletes all indices behind the {@link #ALIAS}
+	 */
 	public DeleteIndexResponse deleteIndex() {
 		try {
-			return this.getClient().admin().indices().prepareDelete("photon").execute().actionGet();
+			final Set<String> indices = getAliasedIndices();
+			if(indices.isEmpty()) {
+				// index of an older photon version named like the alias
+				return this.getClient().admin().indices().prepareDelete(ALIAS).execute().actionGet();
+			}
+			return this.getClient().admin().indices().prepareDelete(indices.toArray(new String[indices.size()])).execute().actionGet();
 		} catch(IndexMissingException e) {
 			// index did not exist
 			return null;
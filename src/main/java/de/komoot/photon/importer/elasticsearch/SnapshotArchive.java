@@ -0,0 +1,222 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.zip.ScatterZipOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntryRequest;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.parallel.InputStreamSupplier;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * packs and unpacks snapshot repositories as zip archives
+ *
+ * @author christoph
+ */
+@Slf4j
+class SnapshotArchive {
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * zips a directory, entries are prefixed with the directory's name. The files are split into one part of about the
+	 * same size per thread, every part is deflated into a temporary file next to the archive, then the parts are
+	 * appended to the archive. Lucene's files are compressed already, the fastest deflate level shrinks the rest nearly
+	 * as well at a fraction of the cpu time.
+	 */
+	static void zip(File directory, File zip, int threads) throws IOException {
+		final String root = directory.getParentFile().getAbsolutePath();
+		final List<ScatterZipOutputStream> scatters = new ArrayList<ScatterZipOutputStream>();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for(final List<File> part : split(FileUtils.listFiles(directory, null, true), threads)) {
+				final ScatterZipOutputStream scatter = ScatterZipOutputStream.fileBased(File.createTempFile("snapshot", ".part", zip.getParentFile()), Deflater.BEST_SPEED);
+				scatters.add(scatter);
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						for(File file : part) {
+							final ZipArchiveEntry entry = new ZipArchiveEntry(file.getAbsolutePath().substring(root.length() + 1).replace(File.separatorChar, '/'));
+							entry.setMethod(ZipEntry.DEFLATED);
+							scatter.addArchiveEntry(ZipArchiveEntryRequest.createZipArchiveEntryRequest(entry, reader(file)));
+						}
+						return null;
+					}
+				}));
+			}
+			waitFor(results, "cannot zip snapshot");
+
+			final ZipArchiveOutputStream out = new ZipArchiveOutputStream(zip);
+			try {
+				for(ScatterZipOutputStream scatter : scatters) {
+					scatter.writeTo(out);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			executor.shutdownNow();
+			for(ScatterZipOutputStream scatter : scatters) {
+				// deletes the temporary file
+				scatter.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the files split into parts of about the same size, the largest file is added to the smallest part first
+	 */
+	private static List<List<File>> split(Collection<File> files, int parts) {
+		final List<File> sorted = new ArrayList<File>(files);
+		Collections.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.valueOf(b.length()).compareTo(a.length());
+			}
+		});
+
+		final List<List<File>> result = new ArrayList<List<File>>();
+		final long[] sizes = new long[Math.max(1, Math.min(parts, sorted.size()))];
+		for(int i = 0; i < sizes.length; i++) {
+			result.add(new ArrayList<File>());
+		}
+		for(File file : sorted) {
+			int smallest = 0;
+			for(int i = 1; i < sizes.length; i++) {
+				if(sizes[i] < sizes[smallest]) smallest = i;
+			}
+			result.get(smallest).add(file);
+			sizes[smallest] += file.length();
+		}
+		return result;
+	}
+
+	private static InputStreamSupplier reader(final File file) {
+		return new InputStreamSupplier() {
+			@Override
+			public InputStream get() {
+				try {
+					return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+				} catch(FileNotFoundException e) {
+					throw new RuntimeException("cannot read snapshot file " + file, e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * extracts a local archive, entries are decompressed in parallel
+	 */
+	static void extract(File zip, final File target, int threads) throws IOException {
+		final ZipFile zipFile = new ZipFile(zip);
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<Void>> results = new ArrayList<Future<Void>>();
+			final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while(entries.hasMoreElements()) {
+				final ZipEntry entry = entries.nextElement();
+				if(entry.isDirectory()) continue;
+
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						write(zipFile.getInputStream(entry), getFile(target, entry));
+						return null;
+					}
+				}));
+			}
+			waitFor(results, "cannot extract snapshot");
+		} finally {
+			executor.shutdownNow();
+			zipFile.close();
+		}
+	}
+
+	/**
+	 * extracts an archive while it is downloaded, nothing is written besides the extracted files
+	 */
+	static void extract(InputStream in, File target) throws IOException {
+		final ZipInputStream zip = new ZipInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+		try {
+			ZipEntry entry;
+			while((entry = zip.getNextEntry()) != null) {
+				if(!entry.isDirectory()) {
+					final OutputStream out = open(getFile(target, entry));
+					try {
+						IOUtils.copyLarge(zip, out);
+					} finally {
+						out.close();
+					}
+				}
+				zip.closeEntry();
+			}
+		} finally {
+			zip.close();
+		}
+	}
+
+	private static File getFile(File target, ZipEntry entry) throws IOException {
+		final File file = new File(target, entry.getName());
+		if(!file.getCanonicalPath().startsWith(target.getCanonicalPath() + File.separator)) {
+			throw new IOException("snapshot archive contains an entry outside of its directory: " + entry.getName());
+		}
+		return file;
+	}
+
+	private static void write(InputStream in, File file) throws IOException {
+		try {
+			final OutputStream out = open(file);
+			try {
+				IOUtils.copyLarge(in, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static OutputStream open(File file) throws IOException {
+		FileUtils.forceMkdir(file.getParentFile());
+		return new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+	}
+
+	private static void waitFor(Collection<Future<Void>> results, String message) throws IOException {
+		try {
+			for(Future<Void> result : results) {
+				result.get();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(message + ", interrupted", e);
+		} catch(ExecutionException e) {
+			throw new IOException(message, e.getCause());
+		}
+	}
+}
@@ -3,44 +3,78 @@ package de.komoot.photon.importer.elasticsearch;
 import de.komoot.photon.importer.Utils;
 import de.komoot.photon.importer.model.PhotonDoc;
 import lombok.extern.slf4j.Slf4j;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 
 import java.io.IOException;
 
 /**
- * Updater for elasticsearch
+ * Updater for elasticsearch. Changes are sent in bulks while the update is running, memory used for pending changes
+ * is therefore limited to the bulk size. The same place can be changed more than once per update, e.g. indexed and
+ * deleted, so bulks are sent by an ordered {@link BulkIndexer}.
  *
  * @author felix
  */
 @Slf4j
 public class Updater implements de.komoot.photon.importer.Updater {
 	private Client esClient;
-	private BulkRequestBuilder bulkRequest;
+	private final BulkIndexer bulkIndexer;
+	private Runnable finishListener;
 
+	/**
+	 * updater with its own bulk indexer, {@link #close()} it when there are no more updates
+	 */
 	public Updater(Client esClient) {
+		this(esClient, new BulkIndexer(esClient, "update", 1, 5000, new ByteSizeValue(10, ByteSizeUnit.MB), TimeValue.timeValueSeconds(5), true));
+	}
+
+	/**
+	 * @param bulkIndexer sends the changes to elasticsearch, use it to configure bulk sizes. It must be ordered, or a
+	 *                    retried or concurrent older change can overwrite a newer one.
+	 */
+	public Updater(Client esClient, BulkIndexer bulkIndexer) {
 		this.esClient = esClient;
-		this.bulkRequest = esClient.prepareBulk();
+		this.bulkIndexer = bulkIndexer;
+	}
+
+	/**
+	 * @param finishListener called after all changes of an update were sent to elasticsearch and are visible to
+	 *                       searches, e.g. to drop caches
+	 */
+	public void setFinishListener(Runnable finishListener) {
+		this.finishListener = finishListener;
 	}
 
 	public void finish() {
-		this.updateDocuments();
+		this.bulkIndexer.flush();
+		// a cache dropped before the next periodic refresh would be filled again with results missing the changes
+		this.esClient.admin().indices().prepareRefresh(Server.ALIAS).execute().actionGet();
+		if(this.finishListener != null) {
+			this.finishListener.run();
+		}
 	}
 
+	/**
+	 * sends pending changes and stops the periodic flushing of the bulk indexer, the updater cannot be used afterwards
+	 */
+	public void close() {
+		this.bulkIndexer.close();
+	}
+
+	/**
+	 * documents are always converted completely, so indexing replaces an existing document or creates a missing one
+	 * without looking it up first
+	 */
 	@Override
 	public void updateOrCreate(PhotonDoc updatedDoc) {
-		final boolean exists = this.esClient.get(this.esClient.prepareGet("photon", "place", String.valueOf(updatedDoc.getPlaceId())).request()).actionGet().isExists();
-		if(exists) {
-			this.update(updatedDoc);
-		} else {
-			this.create(updatedDoc);
-		}
+		this.create(updatedDoc);
 	}
 
 	public void create(PhotonDoc doc) {
 		try {
-			this.bulkRequest.add(this.esClient.prepareIndex("photon", "place").setSource(Utils.convert(doc)).setId(String.valueOf(doc.getPlaceId())));
+			this.bulkIndexer.add(this.esClient.prepareIndex(Server.ALIAS, "place").setSource(Utils.convert(doc)).setId(String.valueOf(doc.getPlaceId())).request());
 		} catch(IOException e) {
 			log.error(String.format("creation of new doc [%s] failed", doc), e);
 		}
@@ -48,21 +82,13 @@ public class Updater implements de.komoot.photon.importer.Updater {
 
 	public void update(PhotonDoc doc) {
 		try {
-			this.bulkRequest.add(this.esClient.prepareUpdate("photon", "place", String.valueOf(doc.getPlaceId())).setDoc(Utils.convert(doc)));
+			this.bulkIndexer.add(this.esClient.prepareUpdate(Server.ALIAS, "place", String.valueOf(doc.getPlaceId())).setDoc(Utils.convert(doc)).request());
 		} catch(IOException e) {
 			log.error(String.format("update of new doc [%s] failed", doc), e);
 		}
 	}
 
 	public void delete(Long id) {
-		this.bulkRequest.add(this.esClient.prepareDelete("photon", "place", String.valueOf(id)));
-	}
-
-	private void updateDocuments() {
-		BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-		if(bulkResponse.hasFailures()) {
-			log.error("error while bulk update: " + bulkResponse.buildFailureMessage());
-		}
-		this.bulkRequest = this.esClient.prepareBulk();
+		this.bulkIndexer.add(this.esClient.prepareDelete(Server.ALIAS, "place", String.valueOf(id)).request());
 	}
 }
@@ -0,0 +1,272 @@
+package de.komoot.photon.importer.json;
+
+import de.komoot.photon.importer.binary.PhotonDocReader;
+import de.komoot.photon.importer.elasticsearch.Importer;
+import de.komoot.photon.importer.model.PhotonDoc;
+import lombok.extern.slf4j.Slf4j;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.elasticsearch.common.bytes.BytesArray;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * imports files written by {@link JsonDumper} into elasticsearch. Json files are read as bytes, documents are passed
+ * to the bulk requests as they are and never parsed, only the small action lines are. Binary files are decoded and
+ * converted to json. Several files are read in parallel, gzip compression and the binary format are detected by
+ * their magic bytes.
+ *
+ * @author christoph
+ */
+@Slf4j
+public class JsonDumpReader {
+	private static final int BUFFER_SIZE = 1 << 20;
+	private static final int PROGRESS_INTERVAL = 100000;
+
+	private final Importer importer;
+	private final int threads;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final AtomicLong counter = new AtomicLong();
+
+	/**
+	 * @param threads number of files read at the same time
+	 */
+	public JsonDumpReader(Importer importer, int threads) {
+		this.importer = importer;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * imports all dump files and finishes the importer
+	 *
+	 * @param path a dump file, a directory containing dump files or the file name prefix passed to {@link JsonDumper}
+	 * @return number of imported documents
+	 */
+	public long read(File path) {
+		final List<File> files = findFiles(path);
+		if(files.isEmpty()) {
+			throw new IllegalArgumentException("no json dump found at " + path);
+		}
+		log.info(String.format("importing %d json dump files with %d threads", files.size(), threads));
+
+		final long startMillis = System.currentTimeMillis();
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+		try {
+			final List<Future<Long>> results = new ArrayList<Future<Long>>();
+			for(final File file : files) {
+				results.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws IOException {
+						return readFile(file);
+					}
+				}));
+			}
+			for(Future<Long> result : results) {
+				result.get();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("json import interrupted", e);
+		} catch(ExecutionException e) {
+			throw new RuntimeException("json import failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		importer.finish();
+		log.info(String.format("imported %d documents from json dump in %ds", counter.get(), (System.currentTimeMillis() - startMillis) / 1000));
+		return counter.get();
+	}
+
+	private static List<File> findFiles(File path) {
+		final File[] files;
+		if(path.isFile()) {
+			files = new File[]{path};
+		} else if(path.isDirectory()) {
+			files = path.listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return !name.startsWith(".") && !name.equals(JsonDumper.MANIFEST);
+				}
+			});
+		} else {
+			// prefix of the numbered files written by JsonDumper
+			final String prefix = path.getName() + "_";
+			final File parent = path.getAbsoluteFile().getParentFile();
+			files = parent == null ? null : parent.listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.startsWith(prefix);
+				}
+			});
+		}
+
+		if(files == null) return new ArrayList<File>();
+		Arrays.sort(files);
+		return Arrays.asList(files);
+	}
+
+	private long readFile(File file) throws IOException {
+		long documents = 0;
+		final InputStream in = open(file);
+		try {
+			if(PhotonDocReader.isBinary(in)) {
+				return readBinary(file, in);
+			}
+
+			final LineReader reader = new LineReader(in);
+			BytesArray action;
+			while((action = reader.readLine()) != null) {
+				if(action.length() == 0) continue;
+
+				final BytesArray source = reader.readLine();
+				if(source == null) {
+					throw new IOException(String.format("%s ends after an action line without document", file));
+				}
+
+				importer.add(getId(action), source);
+				documents++;
+
+				logProgress(counter.incrementAndGet());
+			}
+		} finally {
+			in.close();
+		}
+		log.debug(String.format("imported %d documents from %s", documents, file));
+		return documents;
+	}
+
+	/**
+	 * binary dumps contain documents, they are converted to json for elasticsearch
+	 */
+	private long readBinary(File file, InputStream in) throws IOException {
+		long documents = 0;
+		final PhotonDocReader reader = new PhotonDocReader(in);
+		PhotonDoc doc;
+		while((doc = reader.read()) != null) {
+			importer.add(doc);
+			documents++;
+			logProgress(counter.incrementAndGet());
+		}
+		log.debug(String.format("imported %d documents from %s", documents, file));
+		return documents;
+	}
+
+	private static void logProgress(long count) {
+		if(count % PROGRESS_INTERVAL == 0) {
+			log.info(String.format("imported %d documents from json dump", count));
+		}
+	}
+
+	/**
+	 * @return the document id of a bulk action line, null if the dump was written without ids
+	 */
+	private String getId(BytesArray action) throws IOException {
+		final JsonNode id = mapper.readTree(new ByteArrayInputStream(action.array(), action.arrayOffset(), action.length())).path("index").path("_id");
+		return id.isMissingNode() ? null : id.getValueAsText();
+	}
+
+	/**
+	 * @return the file's content, decompressed if it is gzipped
+	 */
+	static InputStream open(File file) throws IOException {
+		final BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		in.mark(2);
+		final int magic = in.read() | (in.read() << 8);
+		in.reset();
+
+		if(magic == GZIPInputStream.GZIP_MAGIC) {
+			return new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+		}
+		return in;
+	}
+
+	/**
+	 * splits a stream into lines without decoding or copying them. The stream is read in blocks, lines are slices of
+	 * them. A block is never overwritten, the importer keeps the documents until their bulk request is completed.
+	 */
+	static class LineReader {
+		private final InputStream in;
+		private final int blockSize;
+		private byte[] block;
+		private int start;
+		private int end;
+		private boolean eof;
+
+		LineReader(InputStream in) {
+			this(in, BUFFER_SIZE);
+		}
+
+		/**
+		 * @param blockSize bytes read at once, longer lines get larger blocks
+		 */
+		LineReader(InputStream in, int blockSize) {
+			this.in = in;
+			this.blockSize = blockSize;
+			this.block = new byte[blockSize];
+		}
+
+		/**
+		 * @return next line without line break, null at the end of the stream
+		 */
+		BytesArray readLine() throws IOException {
+			int scanned = start;
+			while(true) {
+				for(int i = scanned; i < end; i++) {
+					if(block[i] == '\n') {
+						final BytesArray line = slice(start, i);
+						start = i + 1;
+						return line;
+					}
+				}
+				scanned = end;
+
+				if(eof) {
+					if(start == end) return null;
+					final BytesArray line = slice(start, end);
+					start = end;
+					return line;
+				}
+
+				if(end == block.length) {
+					// continue the line in a new block, lines returned before keep referencing this one
+					final int length = end - start;
+					final byte[] next = new byte[Math.max(blockSize, 2 * length)];
+					System.arraycopy(block, start, next, 0, length);
+					block = next;
+					scanned -= start;
+					start = 0;
+					end = length;
+				}
+
+				final int read = in.read(block, end, block.length - end);
+				if(read == -1) {
+					eof = true;
+				} else {
+					end += read;
+				}
+			}
+		}
+
+		private BytesArray slice(int from, int to) {
+			if(to > from && block[to - 1] == '\r') to--;
+			return new BytesArray(block, from, to - from);
+		}
+	}
+}
@@ -1,53 +1,227 @@
 package de.komoot.photon.importer.json;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.CountingOutputStream;
 import de.komoot.photon.importer.Importer;
 import de.komoot.photon.importer.Utils;
+import de.komoot.photon.importer.binary.PhotonDocWriter;
 import de.komoot.photon.importer.model.PhotonDoc;
 import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
-import java.io.FileNotFoundException;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
- * useful to create json files that can be used for fast re imports
+ * useful to create json files that can be used for fast re imports (see {@link JsonDumpReader}). Documents are written
+ * in elasticsearch's bulk format, or in photon's binary format ({@link PhotonDocWriter}), by several chunk writers in
+ * parallel, every writer starts a new file when its current one reaches the chunk size. {@link #finish()} writes a
+ * manifest listing every chunk with its document count, size and CRC32 checksum.
  *
  * @author christoph
  */
 @Slf4j
 public class JsonDumper implements Importer {
-	private int counter = 0;
-	private int nbLines = 100000;
-	private PrintWriter writer = null;
-	private final String filename;
-
-	public JsonDumper(String filename, int jsonLines) throws FileNotFoundException {
-		this.filename = filename;
-		this.nbLines = jsonLines;
+	public static final String MANIFEST = "manifest.json";
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final File directory;
+	private final long chunkBytes;
+	private final boolean gzip;
+	private final boolean binary;
+	private final BlockingQueue<ChunkWriter> writers;
+	private final List<ChunkWriter> allWriters = new ArrayList<ChunkWriter>();
+	private final List<JSONObject> chunks = Collections.synchronizedList(new ArrayList<JSONObject>());
+	private long chunkDocuments;
+
+	/**
+	 * @param directory  the dump is written to this directory, it is created if necessary
+	 * @param chunkBytes size of the files after which a new file is started
+	 * @param gzip       true to compress the files
+	 * @param binary     true to write the binary format instead of json, several times smaller and faster to read
+	 * @param writers    number of files written at the same time, at most one per importing thread is used
+	 */
+	public JsonDumper(File directory, long chunkBytes, boolean gzip, boolean binary, int writers) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create dump directory " + directory);
+		}
+
+		this.directory = directory;
+		this.chunkBytes = chunkBytes;
+		this.gzip = gzip;
+		this.binary = binary;
+		this.writers = new ArrayBlockingQueue<ChunkWriter>(Math.max(1, writers));
+		for(int i = 0; i < Math.max(1, writers); i++) {
+			final ChunkWriter writer = new ChunkWriter(i);
+			this.writers.add(writer);
+			this.allWriters.add(writer);
+		}
+	}
+
+	/**
+	 * @param chunkDocuments number of documents after which a new file is started in addition to the chunk size, 0 to
+	 *                       rotate by size only
+	 */
+	public void setChunkDocuments(long chunkDocuments) {
+		this.chunkDocuments = chunkDocuments;
 	}
 
 	@Override
 	public void add(PhotonDoc doc) {
+		ChunkWriter writer = null;
 		try {
-			if(counter % nbLines == 0) {
-				if(writer != null) {
-					// close previous writer
-					writer.close();
-				}
-				writer = new PrintWriter(filename + "_" + counter / nbLines);
+			if(binary) {
+				// the string table of a file is not shared, documents are encoded by its writer
+				writer = writers.take();
+				writer.write(doc);
+				return;
 			}
-			writer.println("{\"index\": {}}");
-			writer.println(Utils.convert(doc).string());
-			counter++;
+
+			// serialize before taking a writer, conversion runs in parallel on all importing threads
+			final byte[] action = ("{\"index\": {\"_id\": \"" + doc.getPlaceId() + "\"}}\n").getBytes(Charsets.UTF_8);
+			final BytesReference source = Utils.convert(doc).bytes();
+
+			writer = writers.take();
+			writer.write(action, source);
 		} catch(IOException e) {
 			log.error("error writing json file", e);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while waiting for a json writer", e);
+		} finally {
+			if(writer != null) {
+				writers.add(writer);
+			}
 		}
 	}
 
 	@Override
-	public void finish() {
-		if(writer != null) {
+	public synchronized void finish() {
+		try {
+			long documents = 0;
+			for(ChunkWriter writer : allWriters) {
+				writer.close();
+				documents += writer.total;
+			}
+			writeManifest(documents);
+			log.info(String.format("dumped %d documents into %d files in %s", documents, chunks.size(), directory));
+		} catch(IOException e) {
+			log.error("error finishing json dump", e);
+		}
+	}
+
+	private void writeManifest(long documents) throws IOException {
+		final List<JSONObject> sorted = new ArrayList<JSONObject>(chunks);
+		Collections.sort(sorted, new Comparator<JSONObject>() {
+			@Override
+			public int compare(JSONObject a, JSONObject b) {
+				return a.getString("file").compareTo(b.getString("file"));
+			}
+		});
+
+		final JSONObject manifest = new JSONObject();
+		manifest.put("documents", documents);
+		manifest.put("format", binary ? "binary" : "json");
+		manifest.put("compression", gzip ? "gzip" : "none");
+		manifest.put("chunks", new JSONArray(sorted));
+
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, MANIFEST)), Charsets.UTF_8);
+		try {
+			writer.write(manifest.toString(2));
+		} finally {
 			writer.close();
 		}
 	}
+
+	/**
+	 * writes the files of one writer, they are named photon_dump_[writer]_[sequence].json(.gz) or .bin(.gz)
+	 */
+	private class ChunkWriter {
+		private final int index;
+		private int sequence;
+		private long total;
+
+		private File file;
+		private CRC32 crc;
+		private CountingOutputStream counting;
+		private OutputStream out;
+		private PhotonDocWriter docWriter;
+		private long documents;
+
+		ChunkWriter(int index) {
+			this.index = index;
+		}
+
+		void write(byte[] action, BytesReference source) throws IOException {
+			if(out == null) {
+				open();
+			}
+
+			out.write(action);
+			source.writeTo(out);
+			out.write('\n');
+			written();
+		}
+
+		void write(PhotonDoc doc) throws IOException {
+			if(out == null) {
+				open();
+			}
+
+			docWriter.write(doc);
+			written();
+		}
+
+		private void written() throws IOException {
+			documents++;
+			total++;
+
+			// counts compressed bytes once they left the buffers, chunks are therefore slightly larger
+			if(counting.getCount() >= chunkBytes || (chunkDocuments > 0 && documents >= chunkDocuments)) {
+				close();
+			}
+		}
+
+		private void open() throws IOException {
+			file = new File(directory, String.format("photon_dump_%02d_%05d.%s%s", index, sequence++, binary ? "bin" : "json", gzip ? ".gz" : ""));
+			crc = new CRC32();
+			counting = new CountingOutputStream(new CheckedOutputStream(new FileOutputStream(file), crc));
+			final OutputStream buffered = new BufferedOutputStream(counting, BUFFER_SIZE);
+			out = gzip ? new GZIPOutputStream(buffered, BUFFER_SIZE) : buffered;
+			docWriter = binary ? new PhotonDocWriter(out) : null;
+			documents = 0;
+		}
+
+		void close() throws IOException {
+			if(out == null) return;
+
+			out.close();
+			out = null;
+			docWriter = null;
+
+			final JSONObject chunk = new JSONObject();
+			chunk.put("file", file.getName());
+			chunk.put("documents", documents);
+			chunk.put("bytes", counting.getCount());
+			chunk.put("crc32", Long.toHexString(crc.getValue()));
+			chunks.add(chunk);
+		}
+	}
 }
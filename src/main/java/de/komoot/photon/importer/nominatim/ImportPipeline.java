@@ -0,0 +1,206 @@
+package de.komoot.photon.importer.nominatim;
+
+import de.komoot.photon.importer.Importer;
+import de.komoot.photon.importer.model.PhotonDoc;
+import lombok.extern.slf4j.Slf4j;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * multi threaded import of the entire nominatim database: placex is split into key ranges that are read over separate
+ * connections, documents then pass the stages address enrichment and import (json conversion + bulk indexing), each
+ * stage running with several workers. Stages are connected by bounded queues, a slow stage therefore slows down the
+ * readers instead of filling the heap.
+ *
+ * @author christoph
+ */
+@Slf4j
+class ImportPipeline {
+	private static final int QUEUE_SIZE = 10000;
+	private static final int PROGRESS_INTERVAL = 5000;
+
+	/**
+	 * marks the end of a queue, every consumer of a queue gets its own end marker
+	 */
+	private static final Place END = new Place(null, 0);
+
+	private final NominatimConnector connector;
+	private final Importer importer;
+	private final int threads;
+	private final int partitions;
+	private final String partitionColumn;
+
+	private final BlockingQueue<Place> places = new ArrayBlockingQueue<Place>(QUEUE_SIZE);
+	private final BlockingQueue<Place> documents = new ArrayBlockingQueue<Place>(QUEUE_SIZE);
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	private final AtomicLong counter = new AtomicLong();
+	private long startMillis;
+
+	/**
+	 * a placex row, rank_address is needed to decide how its address is resolved
+	 */
+	private static class Place {
+		final PhotonDoc doc;
+		final int rankAddress;
+
+		Place(PhotonDoc doc, int rankAddress) {
+			this.doc = doc;
+			this.rankAddress = rankAddress;
+		}
+	}
+
+	/**
+	 * @param threads         number of workers per stage
+	 * @param partitions      number of key ranges placex is split into, each one is read by its own connection
+	 * @param partitionColumn placex column the key ranges are based on, place_id or geometry_sector
+	 */
+	ImportPipeline(NominatimConnector connector, Importer importer, int threads, int partitions, String partitionColumn) {
+		this.connector = connector;
+		this.importer = importer;
+		this.threads = threads;
+		this.partitions = partitions;
+		this.partitionColumn = partitionColumn;
+	}
+
+	/**
+	 * runs all stages and blocks until every document was passed to the importer
+	 */
+	long run() {
+		startMillis = System.currentTimeMillis();
+
+		final List<Thread> readers = new ArrayList<Thread>();
+		for(final long[] range : connector.getPartitions(partitionColumn, partitions)) {
+			readers.add(start("photon-reader-" + readers.size(), new Runnable() {
+				@Override
+				public void run() {
+					log.info(String.format("reading placex where %s in [%d, %d]", partitionColumn, range[0], range[1]));
+					connector.readPartition(partitionColumn, range[0], range[1], new NominatimConnector.PlaceHandler() {
+						@Override
+						public void handle(PhotonDoc doc, int rankAddress) {
+							put(places, new Place(doc, rankAddress));
+						}
+					});
+				}
+			}));
+		}
+
+		final List<Thread> enrichers = new ArrayList<Thread>();
+		for(int i = 0; i < threads; i++) {
+			enrichers.add(start("photon-address-" + i, new Runnable() {
+				@Override
+				public void run() {
+					for(Place place = take(places); place != END; place = take(places)) {
+						connector.completeAddress(place.doc, connector.getAddresses(place.doc, place.rankAddress));
+						if(place.doc.isUsefulForIndex()) {
+							put(documents, place);
+						}
+					}
+				}
+			}));
+		}
+
+		final List<Thread> indexers = new ArrayList<Thread>();
+		for(int i = 0; i < threads; i++) {
+			indexers.add(start("photon-import-" + i, new Runnable() {
+				@Override
+				public void run() {
+					for(Place place = take(documents); place != END; place = take(documents)) {
+						importer.add(place.doc);
+						logProgress(counter.incrementAndGet());
+					}
+				}
+			}));
+		}
+
+		join(readers);
+		for(int i = 0; i < enrichers.size(); i++) put(places, END);
+		join(enrichers);
+		for(int i = 0; i < indexers.size(); i++) put(documents, END);
+		join(indexers);
+
+		if(failure.get() != null) {
+			throw new RuntimeException("parallel import failed", failure.get());
+		}
+
+		importer.finish();
+		return counter.get();
+	}
+
+	private Thread start(String name, final Runnable runnable) {
+		Thread thread = new Thread(name) {
+			@Override
+			public void run() {
+				try {
+					runnable.run();
+				} catch(Throwable t) {
+					log.error(String.format("import worker %s failed", getName()), t);
+					failure.compareAndSet(null, t);
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * blocks while the queue is full, gives up once any worker failed
+	 */
+	private void put(BlockingQueue<Place> queue, Place place) {
+		try {
+			do {
+				// checked before every place, workers of a busy stage would not notice the failure otherwise
+				checkFailure();
+			} while(!queue.offer(place, 1, TimeUnit.SECONDS));
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while importing", e);
+		}
+	}
+
+	/**
+	 * blocks while the queue is empty, gives up once any worker failed
+	 */
+	private Place take(BlockingQueue<Place> queue) {
+		try {
+			Place place;
+			do {
+				checkFailure();
+			} while((place = queue.poll(1, TimeUnit.SECONDS)) == null);
+			return place;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while importing", e);
+		}
+	}
+
+	private void checkFailure() {
+		if(failure.get() != null) {
+			throw new RuntimeException("aborting, an import worker failed", failure.get());
+		}
+	}
+
+	private void join(List<Thread> workers) {
+		for(Thread worker : workers) {
+			try {
+				worker.join();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("interrupted while waiting for import workers", e);
+			}
+		}
+	}
+
+	private void logProgress(long count) {
+		if(count % PROGRESS_INTERVAL == 0) {
+			final double documentsPerSecond = 1000d * count / (System.currentTimeMillis() - startMillis);
+			log.info(String.format("imported %s documents [%.1f/second, queued: %d places, %d documents]", MessageFormat.format("{0}", count), documentsPerSecond, places.size(), documents.size()));
+		}
+	}
+}
@@ -1,5 +1,9 @@
 package de.komoot.photon.importer.nominatim;
 
+import com.google.common.base.Joiner;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.neovisionaries.i18n.CountryCode;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
@@ -17,7 +21,12 @@ import org.springframework.jdbc.core.RowMapper;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -27,6 +36,7 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 @Slf4j
 public class NominatimConnector {
+	private final BasicDataSource dataSource;
 	private final JdbcTemplate template;
 	/**
 	 * maps a placex row in nominatim to a photon doc, some attributes are still missing and can be derived by connected address items.
@@ -65,9 +75,57 @@ public class NominatimConnector {
 			return doc;
 		}
 	};
-	private final String selectColsPlaceX = "place_id, osm_type, osm_id, class, type, name, housenumber, postcode, extratags, ST_Envelope(geometry) AS bbox, parent_place_id, linked_place_id, rank_search, importance, calculated_country_code, centroid";
+	/**
+	 * maps a row of get_addressdata to an address item
+	 */
+	private final RowMapper<AddressRow> addressRowMapper = new RowMapper<AddressRow>() {
+		@Override
+		public AddressRow mapRow(ResultSet rs, int rowNum) throws SQLException {
+			Integer adminLevel = rs.getInt("admin_level");
+			if(rs.wasNull()) {
+				adminLevel = null;
+			}
+			return new AddressRow(
+					rs.getLong("place_id"),
+					DBUtils.getMap(rs, "name"),
+					rs.getString("class"),
+					rs.getString("type"),
+					rs.getInt("rank_address"),
+					adminLevel
+			);
+		}
+	};
+	private final String selectColsPlaceX = "place_id, osm_type, osm_id, class, type, name, housenumber, postcode, extratags, ST_Envelope(geometry) AS bbox, parent_place_id, linked_place_id, rank_search, rank_address, importance, calculated_country_code, centroid";
 	private Importer importer;
 
+	/**
+	 * address hierarchies of parent places (inclusive the parent itself), key is the parent's place_id. Objects of
+	 * rank 28 and higher (house numbers, POIs) inherit their entire address from their parent, so all siblings can
+	 * share one get_addressdata call. null if address caching is disabled.
+	 */
+	private LoadingCache<Long, List<AddressRow>> parentAddressCache;
+
+	private int threads = 1;
+	private int partitions = 1;
+	private String partitionColumn = "place_id";
+
+	/**
+	 * callback for place ids read by {@link #readDependentPlaceIds(Collection, PlaceIdHandler)}
+	 */
+	interface PlaceIdHandler {
+		/**
+		 * @param rankSearch nominatim's rank_search of the place, places below 30 can have dependent places themselves
+		 */
+		void handle(long placeId, int rankSearch);
+	}
+
+	/**
+	 * callback for placex rows read by {@link #readPartition(String, long, long, PlaceHandler)}
+	 */
+	interface PlaceHandler {
+		void handle(PhotonDoc doc, int rankAddress);
+	}
+
 	/**
 	 * @param host     database host
 	 * @param port     database port
@@ -76,7 +134,7 @@ public class NominatimConnector {
 	 * @param password db username's password
 	 */
 	public NominatimConnector(String host, int port, String database, String username, String password) {
-		BasicDataSource dataSource = new BasicDataSource();
+		dataSource = new BasicDataSource();
 
 		dataSource.setUrl(String.format("jdbc:postgres_jts://%s:%d/%s", host, port, database));
 		dataSource.setUsername(username);
@@ -86,32 +144,186 @@ public class NominatimConnector {
 
 		template = new JdbcTemplate(dataSource);
 		template.setFetchSize(100000);
+
+		setAddressCacheSize(10000);
 	}
 
 	public void setImporter(Importer importer) {
 		this.importer = importer;
 	}
 
+	/**
+	 * @param threads    number of workers per import stage, 1 imports sequentially on the calling thread
+	 * @param partitions number of key ranges placex is split into, each range is read over its own connection
+	 * @param column     placex column used to build the key ranges, either place_id or geometry_sector
+	 */
+	public void setParallelism(int threads, int partitions, String column) {
+		if(!"place_id".equals(column) && !"geometry_sector".equals(column)) {
+			throw new IllegalArgumentException("cannot partition placex by " + column + ", use place_id or geometry_sector");
+		}
+
+		this.threads = Math.max(1, threads);
+		this.partitions = Math.max(1, partitions);
+		this.partitionColumn = column;
+
+		// one connection per reader and address worker
+		dataSource.setMaxActive(Math.max(dataSource.getMaxActive(), this.partitions + this.threads + 1));
+	}
+
+	/**
+	 * @param size number of parent address hierarchies kept in memory, 0 disables the cache and results in one
+	 *             get_addressdata call per document.
+	 */
+	public void setAddressCacheSize(int size) {
+		if(size <= 0) {
+			parentAddressCache = null;
+			return;
+		}
+
+		parentAddressCache = CacheBuilder.newBuilder().maximumSize(size).recordStats().build(new CacheLoader<Long, List<AddressRow>>() {
+			@Override
+			public List<AddressRow> load(Long parentPlaceId) {
+				return template.query("SELECT place_id, name, class, type, rank_address, admin_level FROM get_addressdata(?) WHERE isaddress", new Object[]{parentPlaceId}, addressRowMapper);
+			}
+		});
+	}
+
 	public PhotonDoc getByPlaceId(long placeId) {
 		return template.queryForObject("SELECT " + selectColsPlaceX + " FROM placex WHERE place_id = ?", new Object[]{placeId}, placeRowMapper);
 	}
 
-	public List<AddressRow> getAddresses(long placeId) {
-		return template.query("SELECT place_id, name, class, type, rank_address, admin_level FROM get_addressdata(?) WHERE isaddress AND (place_id IS NULL OR place_id != ?)", new Object[]{placeId, placeId}, new RowMapper<AddressRow>() {
+	/**
+	 * fetches the given places together with their address items using one query each, the documents are completed
+	 * like in {@link #readEntireDatabase()}.
+	 *
+	 * @return documents by place id, places that do not exist (anymore) are missing
+	 */
+	public Map<Long, PhotonDoc> getByPlaceIds(Collection<Long> placeIds) {
+		final Map<Long, PhotonDoc> docs = new HashMap<Long, PhotonDoc>();
+		if(placeIds.isEmpty()) return docs;
+
+		final String placeholders = Joiner.on(",").join(Collections.nCopies(placeIds.size(), "?"));
+		final Object[] params = placeIds.toArray();
+
+		for(PhotonDoc doc : template.query("SELECT " + selectColsPlaceX + " FROM placex WHERE place_id IN (" + placeholders + ")", params, placeRowMapper)) {
+			docs.put(doc.getPlaceId(), doc);
+		}
+
+		// get_addressdata is called as set returning function in the select list, this works without LATERAL (postgres < 9.3)
+		final Map<Long, List<AddressRow>> addresses = new HashMap<Long, List<AddressRow>>();
+		template.query("SELECT for_place_id, (a).place_id AS place_id, (a).name AS name, (a).class AS class, (a).type AS type, (a).rank_address AS rank_address, (a).admin_level AS admin_level" +
+				" FROM (SELECT place_id AS for_place_id, get_addressdata(place_id) AS a FROM placex WHERE place_id IN (" + placeholders + ")) AS addressdata" +
+				" WHERE (a).isaddress AND ((a).place_id IS NULL OR (a).place_id != for_place_id)", params, new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				final long forPlaceId = rs.getLong("for_place_id");
+				List<AddressRow> placeAddresses = addresses.get(forPlaceId);
+				if(placeAddresses == null) {
+					placeAddresses = new ArrayList<AddressRow>();
+					addresses.put(forPlaceId, placeAddresses);
+				}
+				placeAddresses.add(addressRowMapper.mapRow(rs, 0));
+			}
+		});
+
+		for(PhotonDoc doc : docs.values()) {
+			final List<AddressRow> placeAddresses = addresses.get(doc.getPlaceId());
+			if(placeAddresses != null) {
+				completeAddress(doc, placeAddresses);
+			}
+		}
+		return docs;
+	}
+
+	/**
+	 * streams the ids of all up-to-date places that have one of the given places as parent or as part of their address,
+	 * their documents contain denormalized names of the given places. Houses and POIs have no place_addressline rows,
+	 * they are only found as children of their parent, e.g. of a street found here.
+	 */
+	void readDependentPlaceIds(Collection<Long> addressPlaceIds, final PlaceIdHandler handler) {
+		if(addressPlaceIds.isEmpty()) return;
+
+		final String placeholders = Joiner.on(",").join(Collections.nCopies(addressPlaceIds.size(), "?"));
+		final List<Object> params = new ArrayList<Object>(addressPlaceIds);
+		params.addAll(addressPlaceIds);
+
+		template.query("SELECT place_id, rank_search FROM placex WHERE parent_place_id IN (" + placeholders + ") AND linked_place_id IS NULL AND indexed_status = 0" +
+				" UNION SELECT p.place_id, p.rank_search FROM place_addressline a JOIN placex p ON p.place_id = a.place_id" +
+				" WHERE a.address_place_id IN (" + placeholders + ") AND a.isaddress AND p.linked_place_id IS NULL AND p.indexed_status = 0", params.toArray(), new RowCallbackHandler() {
 			@Override
-			public AddressRow mapRow(ResultSet rs, int rowNum) throws SQLException {
-				Integer adminLevel = rs.getInt("admin_level");
-				if(rs.wasNull()) {
-					adminLevel = null;
+			public void processRow(ResultSet rs) throws SQLException {
+				handler.handle(rs.getLong("place_id"), rs.getInt("rank_search"));
+			}
+		});
+	}
+
+	public List<AddressRow> getAddresses(long placeId) {
+		return template.query("SELECT place_id, name, class, type, rank_address, admin_level FROM get_addressdata(?) WHERE isaddress AND (place_id IS NULL OR place_id != ?)", new Object[]{placeId, placeId}, addressRowMapper);
+	}
+
+	/**
+	 * address items of a document, served from {@link #parentAddressCache} if the document derives its address from its parent
+	 *
+	 * @param rankAddress nominatim's rank_address of the document
+	 */
+	List<AddressRow> getAddresses(PhotonDoc doc, int rankAddress) {
+		if(parentAddressCache != null && rankAddress >= 28 && doc.getParentPlaceId() > 0) {
+			return parentAddressCache.getUnchecked(doc.getParentPlaceId());
+		}
+
+		return getAddresses(doc.getPlaceId());
+	}
+
+	/**
+	 * finalize document by taking into account the higher level address assigned to this doc.
+	 */
+	void completeAddress(PhotonDoc doc, List<AddressRow> addresses) {
+		for(AddressRow address : addresses) {
+			if(address.isCity()) {
+				if(doc.getCity() != null) {
+					doc.getContext().add(doc.getCity());
+				}
+				doc.setCity(address.getName());
+			} else if(address.isStreet() && doc.getStreet() == null) {
+				doc.setStreet(address.getName());
+			} else if(address.isPostcode() && doc.getPostcode() == null && address.getName() != null) {
+				doc.setPostcode(address.getName().get("ref"));
+			} else if(address.isCountry()) {
+				doc.setCountry(address.getName());
+			} else {
+				if(address.isUsefulForContext()) {
+					doc.getContext().add(address.getName());
 				}
-				return new AddressRow(
-						rs.getLong("place_id"),
-						DBUtils.getMap(rs, "name"),
-						rs.getString("class"),
-						rs.getString("type"),
-						rs.getInt("rank_address"),
-						adminLevel
-				);
+			}
+		}
+	}
+
+	/**
+	 * splits the value range of a placex column into (at most) the given number of inclusive ranges
+	 */
+	List<long[]> getPartitions(String column, int count) {
+		final Map<String, Object> bounds = template.queryForMap("SELECT min(" + column + ") AS lower, max(" + column + ") AS upper FROM placex WHERE linked_place_id IS NULL");
+		final List<long[]> ranges = new ArrayList<long[]>();
+		if(bounds.get("lower") == null) return ranges; // empty table
+
+		final long lower = ((Number) bounds.get("lower")).longValue();
+		final long upper = ((Number) bounds.get("upper")).longValue();
+		final long size = Math.max(1, (upper - lower + count) / count);
+		for(long from = lower; from <= upper; from += size) {
+			ranges.add(new long[]{from, Math.min(upper, from + size - 1)});
+		}
+		return ranges;
+	}
+
+	/**
+	 * reads all rows of placex whose column value lies within [from, to], ordered by parent_place_id to make use of
+	 * the parent address cache
+	 */
+	void readPartition(String column, long from, long to, final PlaceHandler handler) {
+		template.query("SELECT " + selectColsPlaceX + " FROM placex WHERE linked_place_id IS NULL AND " + column + " BETWEEN ? AND ? ORDER BY parent_place_id;", new Object[]{from, to}, new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				handler.handle(placeRowMapper.mapRow(rs, 0), rs.getInt("rank_address"));
 			}
 		});
 	}
@@ -121,6 +333,14 @@ public class NominatimConnector {
 	 */
 	public void readEntireDatabase() {
 		log.info("start importing documents from nominatim ...");
+		if(threads > 1 || partitions > 1) {
+			log.info(String.format("parallel import with %d workers per stage and %d partitions by %s", threads, partitions, partitionColumn));
+			final long count = new ImportPipeline(this, importer, threads, partitions, partitionColumn).run();
+			log.info(String.format("finished import of %s photon documents.", MessageFormat.format("{0}", count)));
+			logCacheStats();
+			return;
+		}
+
 		final AtomicLong counter = new AtomicLong();
 
 		final int progressInterval = 5000;
@@ -130,27 +350,7 @@ public class NominatimConnector {
 			@Override
 			public void processRow(ResultSet rs) throws SQLException {
 				PhotonDoc doc = placeRowMapper.mapRow(rs, 0);
-
-				// finalize document by taking into account the higher level address assigned to this doc.
-				final List<AddressRow> addresses = getAddresses(doc.getPlaceId());
-				for(AddressRow address : addresses) {
-					if(address.isCity()) {
-						if(doc.getCity() != null) {
-							doc.getContext().add(doc.getCity());
-						}
-						doc.setCity(address.getName());
-					} else if(address.isStreet() && doc.getStreet() == null) {
-						doc.setStreet(address.getName());
-					} else if(address.isPostcode() && doc.getPostcode() == null && address.getName() != null) {
-						doc.setPostcode(address.getName().get("ref"));
-					} else if(address.isCountry()) {
-						doc.setCountry(address.getName());
-					} else {
-						if(address.isUsefulForContext()) {
-							doc.getContext().add(address.getName());
-						}
-					}
-				}
+				completeAddress(doc, getAddresses(doc, rs.getInt("rank_address")));
 
 				if(!doc.isUsefulForIndex()) return; // do not import document
 
@@ -164,5 +364,12 @@ public class NominatimConnector {
 
 		importer.finish();
 		log.info(String.format("finished import of %s photon documents.", MessageFormat.format("{0}", counter.longValue())));
+		logCacheStats();
+	}
+
+	private void logCacheStats() {
+		if(parentAddressCache != null) {
+			log.info(String.format("parent address cache: %s", parentAddressCache.stats()));
+		}
 	}
 }
@@ -1,5 +1,7 @@
 package de.komoot.photon.importer.nominatim;
 
+import com.google.common.base.Joiner;
+import com.google.common.collect.Iterables;
 import de.komoot.photon.importer.Updater;
 import de.komoot.photon.importer.model.PhotonDoc;
 import de.komoot.photon.importer.nominatim.model.UpdateRow;
@@ -10,8 +12,13 @@ import org.springframework.jdbc.core.RowMapper;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Nominatim update logic
@@ -23,6 +30,7 @@ public class NominatimUpdater {
 	private static final org.slf4j.Logger LOGGER = org.slf4j.LoggerFactory.getLogger(NominatimUpdater.class);
 	private Integer minRank = 1;
 	private Integer maxRank = 30;
+	private int batchSize = 5000;
 	private final JdbcTemplate template;
 	private NominatimConnector exporter;
 
@@ -32,14 +40,65 @@ public class NominatimUpdater {
 		this.updater = updater;
 	}
 
-	public void update() {
+	/**
+	 * @param exporter reads the documents of changed places and their dependents from nominatim
+	 */
+	void setExporter(NominatimConnector exporter) {
+		this.exporter = exporter;
+	}
+
+	/**
+	 * @param batchSize number of changed places that are fetched and reset at once
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return number of places with pending changes
+	 */
+	public long getPendingCount() {
+		return template.queryForObject("select count(*) from placex where indexed_status > 0", Long.class);
+	}
+
+	/**
+	 * exports all changed places (and the places depending on them) to the {@link #updater}
+	 *
+	 * @return number of changed places
+	 */
+	public long update() {
+		long count = 0;
+		// changed places whose names are part of other documents (cities, streets, boundaries, ...)
+		final Set<Long> changedAddressPlaces = new LinkedHashSet<Long>();
+
 		for(Integer rank = this.minRank; rank <= this.maxRank; rank++) {
 			LOGGER.info(String.format("Starting rank %d", rank));
-			for(Map<String, Object> sector : getIndexSectors(rank))
-				for(UpdateRow place : getIndexSectorPlaces(rank, (Integer) sector.get("geometry_sector"))) {
-
-					template.update("update placex set indexed_status = 0 where place_id = ?", new Object[]{place.getPlaceId()});
-					final PhotonDoc updatedDoc = exporter.getByPlaceId(place.getPlaceId());
+			final long rankStartMillis = System.currentTimeMillis();
+			long rankCount = 0;
+
+			List<UpdateRow> places;
+			while(!(places = getChangedPlaces(rank)).isEmpty()) {
+				rankCount += places.size();
+				count += places.size();
+
+				// resetting indexed_status lets nominatim's triggers compute the address data, fetch the places afterwards
+				final List<Long> placeIds = new ArrayList<Long>(places.size());
+				for(UpdateRow place : places) {
+					placeIds.add(place.getPlaceId());
+				}
+				if(rank < 30) {
+					changedAddressPlaces.addAll(placeIds);
+				}
+				resetIndexedStatus(placeIds);
+				final Map<Long, PhotonDoc> updatedDocs = exporter.getByPlaceIds(placeIds);
+
+				for(UpdateRow place : places) {
+					final PhotonDoc updatedDoc = updatedDocs.get(place.getPlaceId());
+					if(updatedDoc == null && place.getIndexdStatus() != 100) {
+						// place vanished from placex in the meantime
+						updater.delete(place.getPlaceId());
+						continue;
+					}
 
 					switch(place.getIndexdStatus()) {
 						case 1:
@@ -49,8 +108,8 @@ public class NominatimUpdater {
 						case 2:
 							if(!updatedDoc.isUsefulForIndex())
 								updater.delete(place.getPlaceId());
-
-							updater.updateOrCreate(updatedDoc);
+							else
+								updater.updateOrCreate(updatedDoc);
 							break;
 						case 100:
 							updater.delete(place.getPlaceId());
@@ -60,19 +119,83 @@ public class NominatimUpdater {
 							break;
 					}
 				}
+			}
+
+			if(rankCount > 0) {
+				final long millis = Math.max(1, System.currentTimeMillis() - rankStartMillis);
+				LOGGER.info(String.format("rank %d: %d places in %.1fs [%.1f/second]", rank, rankCount, millis / 1000d, 1000d * rankCount / millis));
+			}
 		}
 
-		updater.finish();
+		final long dependentCount = updateDependentPlaces(changedAddressPlaces);
+		if(count + dependentCount > 0) {
+			// refreshes the index and drops cached search results, nothing to do if nothing changed
+			updater.finish();
+		}
+		return count;
 	}
 
-	private List<Map<String, Object>> getIndexSectors(Integer rank) {
-		return template.queryForList("select geometry_sector,count(*) from placex where rank_search = ? " +
-				"and indexed_status > 0 group by geometry_sector order by geometry_sector;", new Object[]{rank});
+	/**
+	 * re-exports all places that contain denormalized address data of the changed places, e.g. all houses in a
+	 * renamed street or all places in a city whose name changed. Dependents below rank 30 are searched for dependents
+	 * again until no new ones are found, houses and POIs are only reachable as children of their street.
+	 *
+	 * @return number of re-exported places
+	 */
+	long updateDependentPlaces(Set<Long> changedAddressPlaces) {
+		if(changedAddressPlaces.isEmpty()) return 0;
+
+		final long startMillis = System.currentTimeMillis();
+		final List<Long> dependents = new ArrayList<Long>(batchSize);
+		final long[] count = new long[1];
+		// address places whose dependents are read, only places below rank 30 to keep it small
+		final Set<Long> visited = new HashSet<Long>(changedAddressPlaces);
+
+		Set<Long> parents = changedAddressPlaces;
+		while(!parents.isEmpty()) {
+			final Set<Long> next = new LinkedHashSet<Long>();
+			for(List<Long> chunk : Iterables.partition(parents, batchSize)) {
+				exporter.readDependentPlaceIds(chunk, new NominatimConnector.PlaceIdHandler() {
+					@Override
+					public void handle(long placeId, int rankSearch) {
+						if(rankSearch < 30) {
+							if(!visited.add(placeId)) return;
+							next.add(placeId);
+						}
+
+						dependents.add(placeId);
+						if(dependents.size() >= batchSize) {
+							count[0] += dependents.size();
+							reexport(dependents);
+							dependents.clear();
+						}
+					}
+				});
+			}
+			parents = next;
+		}
+		count[0] += dependents.size();
+		reexport(dependents);
+
+		final long millis = Math.max(1, System.currentTimeMillis() - startMillis);
+		LOGGER.info(String.format("%d dependent places of %d changed address places updated in %.1fs [%.1f/second]", count[0], changedAddressPlaces.size(), millis / 1000d, 1000d * count[0] / millis));
+		return count[0];
+	}
+
+	private void reexport(List<Long> placeIds) {
+		for(PhotonDoc doc : exporter.getByPlaceIds(placeIds).values()) {
+			if(doc.isUsefulForIndex()) {
+				updater.updateOrCreate(doc);
+			}
+		}
 	}
 
-	private List<UpdateRow> getIndexSectorPlaces(Integer rank, Integer geometrySector) {
-		return template.query("select place_id, indexed_status from placex where rank_search = ?" +
-				" and geometry_sector = ? and indexed_status > 0;", new Object[]{rank, geometrySector}, new RowMapper<UpdateRow>() {
+	/**
+	 * @return next batch of places of the given rank that changed since the last update
+	 */
+	private List<UpdateRow> getChangedPlaces(Integer rank) {
+		return template.query("select place_id, indexed_status from placex where rank_search = ? and indexed_status > 0" +
+				" order by place_id limit ?;", new Object[]{rank, batchSize}, new RowMapper<UpdateRow>() {
 			@Override
 			public UpdateRow mapRow(ResultSet rs, int rowNum) throws SQLException {
 				UpdateRow updateRow = new UpdateRow();
@@ -83,6 +206,10 @@ public class NominatimUpdater {
 		});
 	}
 
+	private void resetIndexedStatus(List<Long> placeIds) {
+		template.update("update placex set indexed_status = 0 where place_id in (" + Joiner.on(",").join(Collections.nCopies(placeIds.size(), "?")) + ")", placeIds.toArray());
+	}
+
 	/**
 	 */
 	public NominatimUpdater(String host, int port, String database, String username, String password) {
@@ -92,7 +219,8 @@ public class NominatimUpdater {
 		dataSource.setUsername(username);
 		dataSource.setPassword(password);
 		dataSource.setDriverClassName(JtsWrapper.class.getCanonicalName());
-		dataSource.setDefaultAutoCommit(false);
+		// every reset of indexed_status is committed on its own, dbcp rolls back uncommitted connections when they are returned
+		dataSource.setDefaultAutoCommit(true);
 
 		exporter = new NominatimConnector(host, port, database, username, password);
 		template = new JdbcTemplate(dataSource);
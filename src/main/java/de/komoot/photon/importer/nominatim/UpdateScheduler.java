@@ -0,0 +1,187 @@
+package de.komoot.photon.importer.nominatim;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * runs {@link NominatimUpdater#update()} in the background, never more than one update at a time. If polling is
+ * enabled, placex is checked for pending changes regularly: the interval shrinks to the minimum while a backlog
+ * exists and grows up to the maximum while nominatim has no changes.
+ *
+ * @author christoph
+ */
+@Slf4j
+public class UpdateScheduler {
+	private final NominatimUpdater nominatimUpdater;
+	private final long minIntervalMillis;
+	private final long maxIntervalMillis;
+	private final ScheduledExecutorService executor;
+	private final AtomicBoolean running = new AtomicBoolean();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	private volatile long intervalMillis;
+	private volatile long pendingPlaces = -1;
+	private volatile long pendingSince;
+	private volatile long lastPollMillis;
+	private volatile long lastRunStartMillis;
+	private volatile long lastRunMillis;
+	private volatile long lastRunPlaces;
+	private volatile long totalPlaces;
+	private volatile String lastError;
+
+	/**
+	 * @param minIntervalSeconds shortest time between two polls, 0 disables polling (updates only run on {@link #trigger()})
+	 * @param maxIntervalSeconds longest time between two polls while there are no changes
+	 */
+	public UpdateScheduler(NominatimUpdater nominatimUpdater, int minIntervalSeconds, int maxIntervalSeconds) {
+		this.nominatimUpdater = nominatimUpdater;
+		this.minIntervalMillis = TimeUnit.SECONDS.toMillis(minIntervalSeconds);
+		this.maxIntervalMillis = Math.max(minIntervalMillis, TimeUnit.SECONDS.toMillis(maxIntervalSeconds));
+		this.intervalMillis = minIntervalMillis;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "photon-nominatim-update");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * starts polling placex for changes, does nothing if polling is disabled
+	 */
+	public void start() {
+		if(minIntervalMillis <= 0) return;
+
+		log.info(String.format("polling nominatim for changes every %ds to %ds", minIntervalMillis / 1000, maxIntervalMillis / 1000));
+		scheduled.set(true);
+		schedulePoll(0);
+	}
+
+	/**
+	 * runs an update as soon as possible
+	 *
+	 * @return false if an update is already running, the changes will then be picked up by the running update or the next poll
+	 */
+	public boolean trigger() {
+		if(running.get()) return false;
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				runUpdate();
+			}
+		});
+		return true;
+	}
+
+	public void shutdown() {
+		scheduled.set(false);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return current state of the scheduler, times in milliseconds since epoch / durations in seconds
+	 */
+	public Status getStatus() {
+		final Status status = new Status();
+		status.setRunning(running.get());
+		status.setPolling(scheduled.get());
+		status.setIntervalSeconds(intervalMillis / 1000);
+		status.setPendingPlaces(pendingPlaces);
+		status.setLagSeconds(pendingPlaces > 0 && pendingSince > 0 ? (System.currentTimeMillis() - pendingSince) / 1000 : 0);
+		status.setLastPoll(lastPollMillis);
+		status.setLastRun(lastRunStartMillis);
+		status.setLastRunSeconds(lastRunMillis / 1000d);
+		status.setLastRunPlaces(lastRunPlaces);
+		status.setLastRunPlacesPerSecond(lastRunMillis > 0 ? 1000d * lastRunPlaces / lastRunMillis : 0);
+		status.setTotalPlaces(totalPlaces);
+		status.setLastError(lastError);
+		return status;
+	}
+
+	private void schedulePoll(long delayMillis) {
+		if(!scheduled.get()) return;
+
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * checks for changes once, runs an update if there are any and adapts the interval to the next poll
+	 */
+	void poll() {
+		try {
+			lastPollMillis = System.currentTimeMillis();
+			updatePending(nominatimUpdater.getPendingCount());
+			if(pendingPlaces > 0) {
+				runUpdate();
+				updatePending(nominatimUpdater.getPendingCount());
+			}
+
+			// poll quickly while nominatim produces changes faster than we process them, back off when idle
+			intervalMillis = pendingPlaces > 0 ? minIntervalMillis : Math.min(maxIntervalMillis, intervalMillis * 2);
+		} catch(RuntimeException e) {
+			lastError = e.getMessage();
+			log.error("polling nominatim for changes failed", e);
+			intervalMillis = maxIntervalMillis;
+		} finally {
+			schedulePoll(intervalMillis);
+		}
+	}
+
+	private void updatePending(long count) {
+		if(count > 0 && pendingPlaces <= 0) {
+			pendingSince = System.currentTimeMillis();
+		}
+		pendingPlaces = count;
+	}
+
+	private void runUpdate() {
+		if(!running.compareAndSet(false, true)) return;
+
+		try {
+			lastRunStartMillis = System.currentTimeMillis();
+			lastRunPlaces = nominatimUpdater.update();
+			lastRunMillis = System.currentTimeMillis() - lastRunStartMillis;
+			totalPlaces += lastRunPlaces;
+			lastError = null;
+			log.info(String.format("nominatim update of %d places finished in %.1fs", lastRunPlaces, lastRunMillis / 1000d));
+		} catch(RuntimeException e) {
+			lastError = e.getMessage();
+			log.error("nominatim update failed", e);
+		} finally {
+			running.set(false);
+		}
+	}
+
+	/**
+	 * snapshot of the scheduler's state
+	 */
+	@Data
+	public static class Status {
+		private boolean running;
+		private boolean polling;
+		private long intervalSeconds;
+		private long pendingPlaces; // -1 if not polled yet
+		private long lagSeconds; // age of the oldest pending change that was observed
+		private long lastPoll;
+		private long lastRun;
+		private double lastRunSeconds;
+		private long lastRunPlaces;
+		private double lastRunPlacesPerSecond;
+		private long totalPlaces;
+		private String lastError;
+	}
+}
@@ -64,5 +64,6 @@ public class ESBaseTester {
     public static void shutdownES() {
         if (server != null)
             server.shutdown();
+        server = null;
     }
 }
@@ -0,0 +1,117 @@
+package de.komoot.photon.importer;
+
+import com.beust.jcommander.JCommander;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import de.komoot.photon.ESBaseTester;
+import de.komoot.photon.importer.elasticsearch.Importer;
+import de.komoot.photon.importer.model.PhotonDoc;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * requests against the http api answering searches asynchronously, spark cannot be stopped so it is started once
+ */
+public class AppTest extends ESBaseTester {
+    private static final int PORT = 23221;
+    private static boolean started;
+
+    private void setUpApi() throws Exception {
+        if (started)
+            return;
+
+        setUpES();
+        deleteAll();
+        Map<String, String> nameMap = new HashMap<String, String>();
+        nameMap.put("name", "asyncplace");
+        Importer importer = new Importer(getClient());
+        importer.add(new PhotonDoc(1, "node", 1, "place", "city", nameMap, null, null, null, 0, 0.5, null,
+                new GeometryFactory().createPoint(new Coordinate(13.4, 52.5)), 0));
+        importer.finish();
+        refresh();
+
+        CommandLineArgs args = new CommandLineArgs();
+        new JCommander(args, "-async-search", "-listen-ip", "127.0.0.1", "-listen-port", String.valueOf(PORT));
+        App.startApi(args, getClient());
+        started = true;
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        setUpApi();
+        HttpURLConnection connection = get("/api?q=asyncplace");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("application/json; charset=utf-8", connection.getContentType().toLowerCase());
+
+        JsonNode json = read(connection.getInputStream());
+        assertEquals("FeatureCollection", json.get("type").getTextValue());
+        assertEquals(1, json.get("features").size());
+        assertEquals("asyncplace", json.get("features").get(0).get("properties").get("name").getTextValue());
+    }
+
+    @Test
+    public void testReverse() throws Exception {
+        setUpApi();
+        HttpURLConnection connection = get("/reverse?lon=13.4&lat=52.5");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("application/json; charset=utf-8", connection.getContentType().toLowerCase());
+        assertEquals(1, read(connection.getInputStream()).get("features").size());
+    }
+
+    @Test
+    public void testBadRequest() throws Exception {
+        setUpApi();
+        assertEquals(400, get("/api?q=asyncplace&lang=xx").getResponseCode());
+    }
+
+    @Test
+    public void testReverseInvalidRadiusAndLimit() throws Exception {
+        setUpApi();
+        assertEquals(400, get("/reverse?lon=13.4&lat=52.5&radius=-1").getResponseCode());
+        assertEquals(400, get("/reverse?lon=13.4&lat=52.5&radius=0").getResponseCode());
+        assertEquals(400, get("/reverse?lon=13.4&lat=52.5&radius=abc").getResponseCode());
+        assertEquals(400, get("/reverse?lon=13.4&lat=52.5&limit=0").getResponseCode());
+        assertEquals(400, get("/reverse?lon=13.4&lat=52.5&limit=-5").getResponseCode());
+        assertEquals(200, get("/reverse?lon=13.4&lat=52.5&radius=100&limit=100").getResponseCode());
+    }
+
+    private static HttpURLConnection get(String path) throws IOException, InterruptedException {
+        // spark starts jetty in the background
+        for (int i = 0; ; i++) {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + PORT + path).openConnection();
+            try {
+                connection.getResponseCode();
+                return connection;
+            } catch (ConnectException e) {
+                if (i == 100)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * reads the whole body, a second body appended by spark would fail parsing
+     */
+    private static JsonNode read(InputStream in) throws IOException {
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            JsonParser parser = mapper.getJsonFactory().createJsonParser(in);
+            JsonNode json = mapper.readTree(parser);
+            assertNull(parser.nextToken());
+            return json;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package de.komoot.photon.importer;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RequestLimiterTest {
+
+    @Test
+    public void testConcurrencyLimit() {
+        RequestLimiter instance = new RequestLimiter(2, 0, 0);
+        assertTrue(instance.acquire());
+        assertTrue(instance.acquire());
+        assertFalse(instance.acquire());
+        assertEquals(1, instance.getRejectedCount());
+
+        instance.release();
+        assertTrue(instance.acquire());
+    }
+
+    @Test
+    public void testRejectAfterMaxWait() {
+        RequestLimiter instance = new RequestLimiter(1, 1, 100);
+        assertTrue(instance.acquire());
+
+        long start = System.currentTimeMillis();
+        assertFalse(instance.acquire());
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(1, instance.getRejectedCount());
+
+        // the rejected request left the queue
+        instance.release();
+        assertTrue(instance.acquire());
+    }
+
+    @Test
+    public void testRejectWhenQueueIsFull() throws InterruptedException {
+        final RequestLimiter instance = new RequestLimiter(1, 1, 10000);
+        assertTrue(instance.acquire());
+
+        final AtomicBoolean queued = new AtomicBoolean();
+        Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                queued.set(instance.acquire());
+            }
+        };
+        waiting.start();
+        while (waiting.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(10);
+        }
+
+        // rejected right away instead of waiting for the queue
+        long start = System.currentTimeMillis();
+        assertFalse(instance.acquire());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(1, instance.getRejectedCount());
+
+        instance.release();
+        waiting.join();
+        assertTrue(queued.get());
+    }
+
+    /**
+     * a request whose startAsync throws if asyncSupported is false, all other methods do nothing
+     */
+    private static HttpServletRequest request(final boolean asyncSupported) {
+        final AsyncContext asyncContext = proxy(AsyncContext.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return null;
+            }
+        });
+        return proxy(HttpServletRequest.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("startAsync")) {
+                    if (!asyncSupported)
+                        throw new IllegalStateException("async not supported");
+                    return asyncContext;
+                }
+                return null;
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(RequestLimiterTest.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    @Test
+    public void testPermitReleasedWhenAsyncStartFails() {
+        RequestLimiter instance = new RequestLimiter(1, 0, 0);
+        assertTrue(instance.acquire());
+
+        try {
+            new AsyncSearchResponse(request(false), instance, 1000);
+            fail("async start failed");
+        } catch (IllegalStateException e) {
+            // the search is never started, so its listener cannot release the permit
+        }
+        assertTrue(instance.acquire());
+    }
+
+    @Test
+    public void testAsyncResponseReleasesPermitOnce() {
+        RequestLimiter instance = new RequestLimiter(2, 0, 0);
+        assertTrue(instance.acquire());
+        assertTrue(instance.acquire());
+
+        AsyncSearchResponse response = new AsyncSearchResponse(request(true), instance, 1000);
+        response.onResponse(new SearchHit[0]);
+        // e.g. the searcher throws after it called the listener and the route reports the failure as well
+        response.onFailure(new ElasticsearchTimeoutException("timed out"));
+
+        assertTrue(instance.acquire());
+        assertFalse(instance.acquire());
+    }
+}
@@ -0,0 +1,81 @@
+package de.komoot.photon.importer;
+
+import com.google.common.collect.ImmutableMap;
+import com.neovisionaries.i18n.CountryCode;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import de.komoot.photon.importer.model.PhotonDoc;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * compares the conversion of a photon document to json of {@link Utils} with the one before the rewrite
+ * ({@link LegacyUtils}). Run with -prof gc to compare the allocations per document.
+ * <p/>
+ * run the main method with the test classpath, e.g. from the IDE after mvn test-compile
+ *
+ * @author christoph
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UtilsBenchmark {
+	private PhotonDoc doc;
+
+	@Setup
+	public void setUp() {
+		doc = createDocument();
+	}
+
+	@Benchmark
+	public BytesReference convert() throws IOException {
+		return Utils.convert(doc).bytes();
+	}
+
+	@Benchmark
+	public BytesReference legacyConvert() throws IOException {
+		return LegacyUtils.convert(doc).bytes();
+	}
+
+	/**
+	 * a house number with a typical address: localised street, city and country and a few contexts
+	 */
+	static PhotonDoc createDocument() {
+		final Map<String, String> name = new HashMap<String, String>();
+		name.put("name", "Brandenburger Tor");
+		name.put("name:en", "Brandenburg Gate");
+		name.put("name:fr", "Porte de Brandebourg");
+		name.put("old_name", "Friedenstor");
+
+		final PhotonDoc doc = new PhotonDoc(42, "W", 518071791, "tourism", "attraction", name, "1", null,
+				new Envelope(13.3772, 13.3782, 52.5160, 52.5165), 12, 0.6, CountryCode.DE,
+				new GeometryFactory().createPoint(new Coordinate(13.3777, 52.5163)), 0);
+		doc.setPostcode("10117");
+		doc.setStreet(ImmutableMap.of("name", "Pariser Platz"));
+		doc.setCity(ImmutableMap.of("name", "Berlin", "name:fr", "Berlin", "name:it", "Berlino"));
+		doc.setCountry(ImmutableMap.of("name", "Deutschland", "name:en", "Germany", "name:fr", "Allemagne", "name:it", "Germania"));
+		doc.getContext().add(ImmutableMap.of("name", "Mitte", "name:en", "Centre"));
+		doc.getContext().add(ImmutableMap.of("name", "Tiergarten"));
+		doc.getContext().add(ImmutableMap.of("name", "Mitte"));
+		return doc;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(UtilsBenchmark.class.getSimpleName()).forks(1).warmupIterations(5).measurementIterations(10).build()).run();
+	}
+}
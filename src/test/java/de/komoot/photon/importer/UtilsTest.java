@@ -0,0 +1,103 @@
+package de.komoot.photon.importer;
+
+import com.google.common.collect.ImmutableMap;
+import de.komoot.photon.importer.model.PhotonDoc;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author christoph
+ */
+public class UtilsTest {
+
+    @Test
+    public void testConvertMatchesLegacy() throws IOException {
+        Map<String, Object> converted = assertConvertsLikeLegacy(UtilsBenchmark.createDocument());
+        assertEquals("Mitte, Tiergarten".length(), ((Map<?, ?>) converted.get("context")).get("default").toString().length());
+    }
+
+    @Test
+    public void testMissingAddress() throws IOException {
+        // street, city and country are null, the context set is empty
+        PhotonDoc doc = PhotonDoc.create(1, "N", 1, ImmutableMap.of("name", "Brandenburger Tor"));
+        assertNull(doc.getStreet());
+        assertTrue(doc.getContext().isEmpty());
+
+        Map<String, Object> converted = assertConvertsLikeLegacy(doc);
+        assertFalse(converted.containsKey("street"));
+        assertFalse(converted.containsKey("city"));
+        assertFalse(converted.containsKey("country"));
+        assertFalse(converted.containsKey("context"));
+    }
+
+    @Test
+    public void testContextsWithoutNames() throws IOException {
+        PhotonDoc doc = UtilsBenchmark.createDocument();
+        doc.getContext().clear();
+        doc.getContext().add(ImmutableMap.of("ref", "11"));
+
+        assertFalse(assertConvertsLikeLegacy(doc).containsKey("context"));
+    }
+
+    @Test
+    public void testOnlyAlternativeNames() throws IOException {
+        Map<String, String> name = new HashMap<String, String>();
+        name.put("alt_name", "Friedenstor");
+        name.put("old_name", "Quadrigator");
+        name.put("official_name", "ignored");
+        PhotonDoc doc = PhotonDoc.create(1, "N", 1, name);
+
+        Map<String, Object> converted = assertConvertsLikeLegacy(doc);
+        assertEquals(ImmutableMap.of("alt", "Friedenstor", "old", "Quadrigator"), converted.get("name"));
+    }
+
+    @Test
+    public void testEmptyNames() throws IOException {
+        PhotonDoc doc = PhotonDoc.create(1, "N", 1, new HashMap<String, String>());
+        doc.setCity(new HashMap<String, String>());
+
+        Map<String, Object> converted = assertConvertsLikeLegacy(doc);
+        assertFalse(converted.containsKey("name"));
+        assertFalse(converted.containsKey("city"));
+    }
+
+    /**
+     * @return the converted document
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> assertConvertsLikeLegacy(PhotonDoc doc) throws IOException {
+        Map<String, Object> converted = toMap(Utils.convert(doc));
+        Map<String, Object> legacy = toMap(LegacyUtils.convert(doc));
+
+        // context names are joined in the order of a set
+        Map<String, String> context = (Map<String, String>) converted.get("context");
+        Map<String, String> legacyContext = (Map<String, String>) legacy.get("context");
+        if (context == null || legacyContext == null) {
+            assertEquals(legacy, converted);
+            return converted;
+        }
+
+        assertEquals(legacyContext.keySet(), context.keySet());
+        for (String key : context.keySet()) {
+            assertEquals(new HashSet<String>(Arrays.asList(legacyContext.get(key).split(", "))),
+                    new HashSet<String>(Arrays.asList(context.get(key).split(", "))));
+        }
+
+        Map<String, Object> withoutContext = new HashMap<String, Object>(converted);
+        withoutContext.remove("context");
+        legacy.remove("context");
+        assertEquals(legacy, withoutContext);
+        return converted;
+    }
+
+    private static Map<String, Object> toMap(XContentBuilder builder) {
+        return XContentHelper.convertToMap(builder.bytes(), false).v2();
+    }
+}
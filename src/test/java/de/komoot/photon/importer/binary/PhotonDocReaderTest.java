@@ -0,0 +1,95 @@
+package de.komoot.photon.importer.binary;
+
+import com.google.common.collect.ImmutableMap;
+import com.neovisionaries.i18n.CountryCode;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import de.komoot.photon.importer.model.PhotonDoc;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author christoph
+ */
+public class PhotonDocReaderTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Map<String, String> nameMap = new HashMap<String, String>();
+        nameMap.put("name", "Alexanderplatz");
+        nameMap.put("name:en", "Alexander Square");
+        PhotonDoc doc = new PhotonDoc(42, "W", 4711, "highway", "pedestrian", nameMap, "7a", null,
+                new Envelope(13.411, 13.415, 52.520, 52.523), 12, 0.35, CountryCode.DE,
+                new GeometryFactory().createPoint(new Coordinate(13.4132, 52.5219)), 0);
+        doc.setPostcode("10178");
+        doc.setCity(ImmutableMap.of("name", "Berlin"));
+        doc.setCountry(ImmutableMap.of("name", "Deutschland", "name:en", "Germany"));
+        doc.getContext().add(ImmutableMap.of("name", "Mitte"));
+        PhotonDoc other = PhotonDoc.create(43, "N", 4712, ImmutableMap.of("name", "Berlin"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PhotonDocWriter writer = new PhotonDocWriter(bytes);
+        writer.write(doc);
+        writer.write(other);
+        writer.close();
+
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes.toByteArray());
+        assertTrue(PhotonDocReader.isBinary(in));
+        PhotonDocReader reader = new PhotonDocReader(in);
+        PhotonDoc read = reader.read();
+        assertEquals(doc.getPlaceId(), read.getPlaceId());
+        assertEquals(doc.getOsmId(), read.getOsmId());
+        assertEquals(doc.getName(), read.getName());
+        assertEquals(doc.getHouseNumber(), read.getHouseNumber());
+        assertEquals(doc.getPostcode(), read.getPostcode());
+        assertEquals(doc.getCountryCode(), read.getCountryCode());
+        assertEquals(doc.getImportance(), read.getImportance(), 0);
+        assertEquals(doc.getCentroid().getX(), read.getCentroid().getX(), 1e-7);
+        assertEquals(doc.getBbox().getMaxY(), read.getBbox().getMaxY(), 1e-7);
+        assertEquals(doc.getCity(), read.getCity());
+        assertEquals(doc.getCountry(), read.getCountry());
+        assertNull(read.getStreet());
+        assertEquals(doc.getContext(), read.getContext());
+
+        // the repeated name key is read from the string table
+        assertEquals(other.getName(), reader.read().getName());
+        assertNull(reader.read());
+    }
+
+    @Test
+    public void testNullValues() throws IOException {
+        // hstore values can be NULL, DBUtils.getMap copies them
+        Map<String, String> nameMap = new HashMap<String, String>();
+        nameMap.put("name", "Alexanderplatz");
+        nameMap.put("old_name", null);
+        Map<String, String> extratags = new HashMap<String, String>();
+        extratags.put("wikipedia", null);
+        extratags.put("website", "https://example.org");
+        Map<String, String> city = new HashMap<String, String>();
+        city.put("name", "Berlin");
+        city.put("name:en", null);
+        PhotonDoc doc = new PhotonDoc(42, "W", 4711, "highway", "pedestrian", nameMap, null, extratags,
+                null, 0, 0.35, null, null, 0);
+        doc.setCity(city);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PhotonDocWriter writer = new PhotonDocWriter(bytes);
+        writer.write(doc);
+        writer.write(PhotonDoc.create(43, "N", 4712, ImmutableMap.of("name", "Berlin")));
+        writer.close();
+
+        PhotonDocReader reader = new PhotonDocReader(new ByteArrayInputStream(bytes.toByteArray()));
+        PhotonDoc read = reader.read();
+        assertEquals(ImmutableMap.of("name", "Alexanderplatz"), read.getName());
+        assertEquals(ImmutableMap.of("website", "https://example.org"), read.getExtratags());
+        assertEquals(ImmutableMap.of("name", "Berlin"), read.getCity());
+        assertEquals(43, reader.read().getPlaceId());
+        assertNull(reader.read());
+    }
+}
@@ -0,0 +1,255 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * runs the bulk indexer against a client that answers bulk requests itself, failing the items chosen by the test
+ */
+public class BulkIndexerTest {
+
+    private static final String REJECTED = "EsRejectedExecutionException[rejected execution of [index]]";
+
+    /**
+     * fails items with the message returned for their id, null lets them succeed
+     */
+    private static abstract class FakeClient implements InvocationHandler {
+        final List<List<String>> bulks = new ArrayList<List<String>>();
+        final List<Long> bulkMillis = new ArrayList<Long>();
+
+        abstract String getFailure(String id, int attempt);
+
+        /**
+         * @param bulk number of the bulk, starting at 1
+         * @return exception the whole bulk fails with, null to answer it item by item
+         */
+        Throwable getBulkFailure(int bulk) {
+            return null;
+        }
+
+        Client create() {
+            return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class[]{Client.class}, this);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (!method.getName().equals("bulk") || args.length != 2)
+                throw new UnsupportedOperationException(method.getName());
+
+            BulkRequest request = (BulkRequest) args[0];
+            Throwable bulkFailure = getBulkFailure(bulks.size() + 1);
+            List<String> ids = new ArrayList<String>();
+            BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+            for (int i = 0; i < items.length; i++) {
+                String id = ((IndexRequest) request.requests().get(i)).id();
+                ids.add(id);
+                int attempt = 1;
+                for (List<String> bulk : bulks) {
+                    if (bulk.contains(id))
+                        attempt++;
+                }
+
+                String failure = getFailure(id, attempt);
+                if (failure == null) {
+                    items[i] = new BulkItemResponse(i, "index", new IndexResponse("photon", "place", id, 1, true));
+                } else {
+                    items[i] = new BulkItemResponse(i, "index", new BulkItemResponse.Failure("photon", "place", id, failure, RestStatus.SERVICE_UNAVAILABLE));
+                }
+            }
+            bulks.add(ids);
+            bulkMillis.add(System.currentTimeMillis());
+
+            if (bulkFailure != null) {
+                ((ActionListener<BulkResponse>) args[1]).onFailure(bulkFailure);
+                return null;
+            }
+            ((ActionListener<BulkResponse>) args[1]).onResponse(new BulkResponse(items, 1));
+            return null;
+        }
+    }
+
+    private static BulkIndexer createIndexer(Client client) {
+        return new BulkIndexer(client, "test", 1, 10, new ByteSizeValue(1, ByteSizeUnit.MB), null);
+    }
+
+    private static ActionRequest index(String id) {
+        return new IndexRequest("photon", "place", id).source("{}");
+    }
+
+    @Test
+    public void testRetryRejectedItem() {
+        FakeClient fake = new FakeClient() {
+            @Override
+            String getFailure(String id, int attempt) {
+                return id.equals("2") && attempt == 1 ? REJECTED : null;
+            }
+        };
+        BulkIndexer indexer = createIndexer(fake.create());
+        indexer.add(index("1"));
+        indexer.add(index("2"));
+        indexer.flush();
+
+        assertEquals(2, fake.bulks.size());
+        assertEquals(1, fake.bulks.get(1).size());
+        assertEquals("2", fake.bulks.get(1).get(0));
+        assertTrue(fake.bulkMillis.get(1) - fake.bulkMillis.get(0) >= BulkIndexer.getRetryDelayMillis(1));
+        assertEquals(0, indexer.getFailureCount());
+        assertEquals(0, indexer.getInFlightCount());
+    }
+
+    @Test
+    public void testGiveUpAfterRetries() {
+        FakeClient fake = new FakeClient() {
+            @Override
+            String getFailure(String id, int attempt) {
+                return REJECTED;
+            }
+        };
+        BulkIndexer indexer = createIndexer(fake.create());
+        indexer.add(index("1"));
+        indexer.flush();
+
+        // first attempt and three retries
+        assertEquals(4, fake.bulks.size());
+        assertEquals(1, indexer.getFailureCount());
+    }
+
+    @Test
+    public void testPermanentFailureIsNotRetried() {
+        FakeClient fake = new FakeClient() {
+            @Override
+            String getFailure(String id, int attempt) {
+                return "MapperParsingException[failed to parse]";
+            }
+        };
+        BulkIndexer indexer = createIndexer(fake.create());
+        indexer.add(index("1"));
+        indexer.flush();
+
+        assertEquals(1, fake.bulks.size());
+        assertEquals(1, indexer.getFailureCount());
+    }
+
+    @Test
+    public void testRetryUnavailableNode() {
+        FakeClient fake = new FakeClient() {
+            @Override
+            String getFailure(String id, int attempt) {
+                return null;
+            }
+
+            @Override
+            Throwable getBulkFailure(int bulk) {
+                return bulk == 1 ? new NoNodeAvailableException() : null;
+            }
+        };
+        BulkIndexer indexer = createIndexer(fake.create());
+        indexer.add(index("1"));
+        indexer.add(index("2"));
+        indexer.flush();
+
+        assertEquals(2, fake.bulks.size());
+        assertEquals(2, fake.bulks.get(1).size());
+        assertEquals(0, indexer.getFailureCount());
+    }
+
+    @Test
+    public void testPermanentBulkFailureIsNotRetried() {
+        FakeClient fake = new FakeClient() {
+            @Override
+            String getFailure(String id, int attempt) {
+                return null;
+            }
+
+            @Override
+            Throwable getBulkFailure(int bulk) {
+                return new IndexMissingException(new Index("photon"));
+            }
+        };
+        BulkIndexer indexer = createIndexer(fake.create());
+        indexer.add(index("1"));
+        indexer.add(index("2"));
+        long startMillis = System.currentTimeMillis();
+        indexer.flush();
+
+        assertEquals(1, fake.bulks.size());
+        assertEquals(2, indexer.getFailureCount());
+        assertTrue(System.currentTimeMillis() - startMillis < BulkIndexer.getRetryDelayMillis(1));
+    }
+
+    @Test
+    public void testOrderedRetryBeforeNewerActions() {
+        FakeClient fake = new FakeClient() {
+            @Override
+            String getFailure(String id, int attempt) {
+                return id.equals("1") && attempt < 3 ? REJECTED : null;
+            }
+        };
+        // every action is sent on its own
+        BulkIndexer indexer = new BulkIndexer(fake.create(), "test", 4, 1, new ByteSizeValue(1, ByteSizeUnit.MB), null, true);
+        indexer.add(index("1"));
+        indexer.add(index("2"));
+        indexer.add(index("1"));
+        indexer.flush();
+
+        // the first change of 1 is retried twice before anything newer is sent
+        assertEquals("[[1], [1], [1], [2], [1]]", fake.bulks.toString());
+        assertEquals(0, indexer.getFailureCount());
+    }
+
+    @Test
+    public void testUnorderedRetryAfterNewerActions() {
+        FakeClient fake = new FakeClient() {
+            @Override
+            String getFailure(String id, int attempt) {
+                return id.equals("1") && attempt == 1 ? REJECTED : null;
+            }
+        };
+        BulkIndexer indexer = new BulkIndexer(fake.create(), "test", 4, 1, new ByteSizeValue(1, ByteSizeUnit.MB), null);
+        indexer.add(index("1"));
+        indexer.add(index("2"));
+        indexer.flush();
+
+        assertEquals("[[1], [2], [1]]", fake.bulks.toString());
+    }
+
+    @Test
+    public void testTemporaryFailures() {
+        assertTrue(BulkIndexer.isTemporary(REJECTED));
+        assertTrue(BulkIndexer.isTemporary("UnavailableShardsException[[photon][0] Primary shard is not active]"));
+        assertTrue(BulkIndexer.isTemporary(ExceptionsHelper.detailedMessage(new NoNodeAvailableException())));
+        assertFalse(BulkIndexer.isTemporary("MapperParsingException[failed to parse]"));
+        assertFalse(BulkIndexer.isTemporary(ExceptionsHelper.detailedMessage(new IndexMissingException(new Index("photon")))));
+        assertFalse(BulkIndexer.isTemporary(null));
+    }
+
+    @Test
+    public void testRetryDelayDoubles() {
+        assertEquals(500, BulkIndexer.getRetryDelayMillis(1));
+        assertEquals(1000, BulkIndexer.getRetryDelayMillis(2));
+        assertEquals(2000, BulkIndexer.getRetryDelayMillis(3));
+        assertEquals(10000, BulkIndexer.getRetryDelayMillis(10));
+        assertEquals(10000, BulkIndexer.getRetryDelayMillis(100));
+    }
+}
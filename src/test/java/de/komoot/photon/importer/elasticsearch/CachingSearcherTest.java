@@ -0,0 +1,191 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import com.vividsolutions.jts.geom.Envelope;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CachingSearcherTest {
+
+    /**
+     * records the locations it is asked for and returns a new result for every search. Asynchronous searches are
+     * answered right away unless they are deferred.
+     */
+    private static class FakeSearcher extends Searcher {
+        final List<Double[]> locations = new ArrayList<Double[]>();
+        final List<ActionListener<SearchResult>> deferred = new ArrayList<ActionListener<SearchResult>>();
+        boolean complete = true;
+        boolean defer = false;
+
+        FakeSearcher() {
+            super(null);
+        }
+
+        @Override
+        public SearchResult searchResult(String query, String lang, Double lon, Double lat, Envelope bbox, Set<String> countryCodes, int limit) {
+            locations.add(new Double[]{lon, lat});
+            return new SearchResult(new SearchHit[0], complete);
+        }
+
+        @Override
+        public SearchHit[] search(String query, String lang, Double lon, Double lat, Envelope bbox, Set<String> countryCodes, int limit) {
+            return searchResult(query, lang, lon, lat, bbox, countryCodes, limit).getHits();
+        }
+
+        @Override
+        public void searchResult(String query, String lang, Double lon, Double lat, Envelope bbox, Set<String> countryCodes, int limit, ActionListener<SearchResult> listener) {
+            if (defer) {
+                locations.add(new Double[]{lon, lat});
+                deferred.add(listener);
+            } else {
+                listener.onResponse(searchResult(query, lang, lon, lat, bbox, countryCodes, limit));
+            }
+        }
+
+        @Override
+        public void search(String query, String lang, Double lon, Double lat, Envelope bbox, Set<String> countryCodes, int limit, ActionListener<SearchHit[]> listener) {
+            listener.onResponse(search(query, lang, lon, lat, bbox, countryCodes, limit));
+        }
+
+        void answerDeferred() {
+            for (ActionListener<SearchResult> listener : deferred) {
+                listener.onResponse(new SearchResult(new SearchHit[0], complete));
+            }
+            deferred.clear();
+        }
+    }
+
+    private static class Result implements ActionListener<SearchHit[]> {
+        SearchHit[] hits;
+
+        @Override
+        public void onResponse(SearchHit[] hits) {
+            this.hits = hits;
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testNearbyLocationsShareEntry() {
+        FakeSearcher searcher = new FakeSearcher();
+        CachingSearcher instance = new CachingSearcher(searcher, 100, 60);
+
+        SearchHit[] first = instance.search("Berlin ", "en", 13.40123, 52.50234, null, null, 10);
+        SearchHit[] second = instance.search("berlin", "en", 13.39876, 52.49987, null, null, 10);
+
+        assertSame(first, second);
+        assertEquals(1, searcher.locations.size());
+        // the rounded location is searched, so every request sharing the entry gets the same results
+        assertEquals(13.4, searcher.locations.get(0)[0], 0);
+        assertEquals(52.5, searcher.locations.get(0)[1], 0);
+        assertEquals(1, instance.getStats().hitCount());
+    }
+
+    @Test
+    public void testDistinctKeys() {
+        FakeSearcher searcher = new FakeSearcher();
+        CachingSearcher instance = new CachingSearcher(searcher, 100, 60);
+
+        instance.search("berlin", "en", 13.4, 52.5, null, null, 10);
+        instance.search("berlin", "en", 13.42, 52.5, null, null, 10);
+        instance.search("berlin", "de", 13.4, 52.5, null, null, 10);
+        instance.search("berlin", "en", 13.4, 52.5, null, null, 5);
+        instance.search("berlin", "en", null, null, null, null, 10);
+        instance.search("berlin", "en", 13.4, 52.5, new Envelope(13, 14, 52, 53), null, 10);
+
+        assertEquals(6, searcher.locations.size());
+        assertEquals(6, instance.getSize());
+        assertNull(searcher.locations.get(4)[0]);
+    }
+
+    @Test
+    public void testInvalidate() {
+        FakeSearcher searcher = new FakeSearcher();
+        CachingSearcher instance = new CachingSearcher(searcher, 100, 60);
+
+        SearchHit[] first = instance.search("berlin", "en", null, null, null, null, 10);
+        instance.invalidate();
+        assertEquals(0, instance.getSize());
+
+        assertNotSame(first, instance.search("berlin", "en", null, null, null, null, 10));
+        assertEquals(2, searcher.locations.size());
+    }
+
+    @Test
+    public void testAsyncSearchUsesCache() {
+        FakeSearcher searcher = new FakeSearcher();
+        CachingSearcher instance = new CachingSearcher(searcher, 100, 60);
+
+        Result first = new Result();
+        instance.search("berlin", "en", 13.401, 52.501, null, null, 10, first);
+        Result second = new Result();
+        instance.search("berlin", "en", 13.399, 52.499, null, null, 10, second);
+
+        assertSame(first.hits, second.hits);
+        assertEquals(1, searcher.locations.size());
+
+        instance.invalidate();
+        Result third = new Result();
+        instance.search("berlin", "en", 13.4, 52.5, null, null, 10, third);
+        assertNotSame(first.hits, third.hits);
+        assertEquals(2, searcher.locations.size());
+    }
+
+    @Test
+    public void testDisabledCache() {
+        FakeSearcher searcher = new FakeSearcher();
+        CachingSearcher instance = new CachingSearcher(searcher, 0, 60);
+
+        instance.search("berlin", "en", 13.40123, 52.50234, null, null, 10);
+        instance.search("berlin", "en", 13.40123, 52.50234, null, null, 10, new Result());
+        assertEquals(2, searcher.locations.size());
+        // the location is only rounded to share cache entries
+        for (Double[] location : searcher.locations) {
+            assertEquals(13.40123, location[0], 0);
+            assertEquals(52.50234, location[1], 0);
+        }
+    }
+
+    @Test
+    public void testIncompleteResultsAreNotCached() {
+        FakeSearcher searcher = new FakeSearcher();
+        searcher.complete = false;
+        CachingSearcher instance = new CachingSearcher(searcher, 100, 60);
+
+        instance.search("berlin", "en", null, null, null, null, 10);
+        instance.search("berlin", "en", null, null, null, null, 10, new Result());
+        assertEquals(0, instance.getSize());
+
+        searcher.complete = true;
+        instance.search("berlin", "en", null, null, null, null, 10);
+        instance.search("berlin", "en", null, null, null, null, 10);
+        assertEquals(3, searcher.locations.size());
+    }
+
+    @Test
+    public void testResultsOfSearchesBeforeInvalidateAreNotCached() {
+        FakeSearcher searcher = new FakeSearcher();
+        searcher.defer = true;
+        CachingSearcher instance = new CachingSearcher(searcher, 100, 60);
+
+        Result result = new Result();
+        instance.search("berlin", "en", null, null, null, null, 10, result);
+        // the index changed while elasticsearch was searching, the response may miss the changes
+        instance.invalidate();
+        searcher.answerDeferred();
+        assertNotNull(result.hits);
+        assertEquals(0, instance.getSize());
+
+        instance.search("berlin", "en", null, null, null, null, 10, new Result());
+        searcher.answerDeferred();
+        assertEquals(1, instance.getSize());
+    }
+}
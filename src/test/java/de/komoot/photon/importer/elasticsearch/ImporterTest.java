@@ -32,6 +32,53 @@ public class ImporterTest extends ESBaseTester {
         refresh();
         assertEquals(1L, instance.count());
         
-        assertEquals(1, new Searcher(getClient()).search("testing", "en", null, null, 10, true).size());
+        assertEquals(1, new Searcher(getClient()).search("testing", "en", null, null, 10, true).length);
+    }
+
+    @Test
+    public void testVerify() {
+        Importer instance = new Importer(getClient());
+        instance.add(PhotonDoc.create(1, "way", 1, name("testing")));
+        instance.add(PhotonDoc.create(2, "way", 2, name("Hauptstraße")));
+        instance.finish();
+
+        assertTrue(instance.verify());
+    }
+
+    @Test
+    public void testVerifySkipsNamesWithoutTokens() {
+        // the search analyzer drops punctuation and tokens shorter than 2 characters, these names cannot be found
+        Importer instance = new Importer(getClient());
+        instance.add(PhotonDoc.create(1, "node", 1, name("A")));
+        instance.add(PhotonDoc.create(2, "node", 2, name("7")));
+        instance.add(PhotonDoc.create(3, "node", 3, name(".,")));
+        instance.finish();
+
+        assertTrue(instance.verify());
+    }
+
+    @Test
+    public void testVerifyMissingDocuments() {
+        Importer instance = new Importer(getClient());
+        instance.add(PhotonDoc.create(1, "way", 1, name("testing")));
+        instance.add(PhotonDoc.create(2, "way", 2, name("other")));
+        instance.finish();
+        getClient().prepareDelete("photon", "place", "2").execute().actionGet();
+
+        assertFalse(instance.verify());
+    }
+
+    @Test
+    public void testVerifyEmptyIndex() {
+        Importer instance = new Importer(getClient());
+        instance.finish();
+
+        assertFalse(instance.verify());
+    }
+
+    private static Map<String, String> name(String name) {
+        Map<String, String> nameMap = new HashMap<String, String>();
+        nameMap.put("name", name);
+        return nameMap;
     }
 }
@@ -0,0 +1,40 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.text.StrSubstitutor;
+
+import java.io.IOException;
+
+/**
+ * query construction of photon before the query builders were introduced: json templates rendered with
+ * StrSubstitutor, scored with MVEL scripts
+ *
+ * @author christoph
+ */
+class QueryTemplates {
+	private final String queryTemplate;
+	private final String queryLocationBiasTemplate;
+
+	QueryTemplates() throws IOException {
+		queryTemplate = IOUtils.toString(getClass().getResourceAsStream("/benchmark/query.json"), "UTF-8");
+		queryLocationBiasTemplate = IOUtils.toString(getClass().getResourceAsStream("/benchmark/query_location_bias.json"), "UTF-8");
+	}
+
+	String render(String query, String lang, Double lon, Double lat, boolean matchAll) {
+		final ImmutableMap.Builder<String, Object> params = ImmutableMap.<String, Object>builder()
+				.put("query", StringEscapeUtils.escapeJson(query))
+				.put("lang", lang)
+				.put("should_match", matchAll ? "100%" : "-1");
+		if(lon != null) params.put("lon", lon);
+		if(lat != null) params.put("lat", lat);
+
+		StrSubstitutor sub = new StrSubstitutor(params.build(), "${", "}");
+		if(lon != null && lat != null) {
+			return sub.replace(queryLocationBiasTemplate);
+		} else {
+			return sub.replace(queryTemplate);
+		}
+	}
+}
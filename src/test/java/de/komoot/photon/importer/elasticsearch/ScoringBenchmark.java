@@ -0,0 +1,209 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import de.komoot.photon.importer.Utils;
+import de.komoot.photon.importer.model.PhotonDoc;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * compares the former search queries scored by MVEL scripts with the queries of {@link SearchQueryBuilder} scored by
+ * the native scripts of {@link PhotonScoringPlugin}. The queries are those of the world test suite in test/world.
+ * <p/>
+ * The index is restored from the snapshot given by the system property photon.benchmark.snapshot, e.g. the world
+ * dataset http://photon.komoot.de/data/world.zip. Without it the places expected by the test suite are indexed
+ * together with places named after combinations of their words, so the queries match many documents as on real data.
+ * <p/>
+ * run the main method with the test classpath from the project directory, e.g. from the IDE after mvn test-compile
+ *
+ * @author christoph
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ScoringBenchmark {
+	private static final File TEST_WORLD = new File("test/world");
+	private static final int GENERATED_PLACES = 200000;
+	private static final double[] BERLIN = {13.438596, 52.519854};
+
+	private Server server;
+	private Client client;
+	private QueryTemplates queryTemplates;
+	private SearchQueryBuilder queryBuilder;
+	private final List<TestQuery> queries = new ArrayList<TestQuery>();
+	private final List<PhotonDoc> places = new ArrayList<PhotonDoc>();
+	private int next;
+
+	/**
+	 * query of the world test suite, searched with its location or from berlin if it has none
+	 */
+	private static class TestQuery {
+		final String query;
+		final String lang;
+		final double lon;
+		final double lat;
+
+		TestQuery(String query, String lang, double lon, double lat) {
+			this.query = query;
+			this.lang = lang;
+			this.lon = lon;
+			this.lat = lat;
+		}
+	}
+
+	@Setup
+	public void setUp() throws IOException {
+		readTestWorld();
+		queryTemplates = new QueryTemplates();
+		queryBuilder = new SearchQueryBuilder();
+
+		server = new Server(new File("./target/es_photon_benchmark").getAbsolutePath()).start(true);
+		client = server.getClient();
+
+		final String snapshot = System.getProperty("photon.benchmark.snapshot");
+		if(snapshot != null) {
+			server.importSnapshot(snapshot);
+		} else {
+			server.recreateIndex();
+			indexPlaces();
+		}
+		client.admin().indices().prepareRefresh(Server.ALIAS).execute().actionGet();
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.shutdown();
+	}
+
+	@Benchmark
+	public SearchHit[] mvel() {
+		final TestQuery query = nextQuery();
+		return search(queryTemplates.render(query.query, query.lang, null, null, true));
+	}
+
+	@Benchmark
+	public SearchHit[] mvelLocationBias() {
+		final TestQuery query = nextQuery();
+		return search(queryTemplates.render(query.query, query.lang, query.lon, query.lat, true));
+	}
+
+	@Benchmark
+	public SearchHit[] nativeScript() {
+		final TestQuery query = nextQuery();
+		return search(queryBuilder.build(query.query, query.lang, null, null, true));
+	}
+
+	@Benchmark
+	public SearchHit[] nativeScriptLocationBias() {
+		final TestQuery query = nextQuery();
+		return search(queryBuilder.build(query.query, query.lang, query.lon, query.lat, true));
+	}
+
+	private TestQuery nextQuery() {
+		next = (next + 1) % queries.size();
+		return queries.get(next);
+	}
+
+	private SearchHit[] search(String query) {
+		return client.prepareSearch(Server.ALIAS).setQuery(query).setSize(15).execute().actionGet().getHits().getHits();
+	}
+
+	private SearchHit[] search(QueryBuilder query) {
+		return client.prepareSearch(Server.ALIAS).setQuery(query).setSize(15).execute().actionGet().getHits().getHits();
+	}
+
+	/**
+	 * collects the queries of the csv files of the world test suite and the places they expect
+	 */
+	private void readTestWorld() throws IOException {
+		final GeometryFactory geometryFactory = new GeometryFactory();
+		for(File file : Files.fileTreeTraverser().preOrderTraversal(TEST_WORLD)) {
+			if(!file.getName().endsWith(".csv")) continue;
+
+			final List<String> lines = Files.readLines(file, Charsets.UTF_8);
+			final List<String> header = Arrays.asList(lines.get(0).split(";"));
+			final int query = header.indexOf("query");
+			if(query < 0) continue;
+			final int lang = header.indexOf("lang");
+			final int name = header.indexOf("expected_name");
+			final int coordinate = header.indexOf("expected_coordinate");
+			final int lat = header.indexOf("lat");
+			final int lon = header.indexOf("lon");
+
+			for(String line : lines.subList(1, lines.size())) {
+				final String[] values = line.split(";", -1);
+				if(values.length < header.size()) continue;
+				for(int i = 0; i < values.length; i++) {
+					values[i] = values[i].replaceAll("^\"|\"$", "");
+				}
+
+				try {
+					final String language = lang >= 0 ? values[lang].toLowerCase(Locale.ENGLISH) : "";
+					final double[] location = lat >= 0 && lon >= 0 ? new double[]{Double.parseDouble(values[lon]), Double.parseDouble(values[lat])} : BERLIN;
+					queries.add(new TestQuery(values[query], Arrays.asList(Utils.languages).contains(language) ? language : "en", location[0], location[1]));
+
+					if(name >= 0 && coordinate >= 0) {
+						final String[] expected = values[coordinate].split(",");
+						places.add(createPlace(places.size() + 1, values[name], Double.parseDouble(expected[1]), Double.parseDouble(expected[0]), geometryFactory));
+					}
+				} catch(NumberFormatException e) {
+					// a few rows give coordinates in other formats
+				}
+			}
+		}
+	}
+
+	private void indexPlaces() {
+		final List<String> words = new ArrayList<String>();
+		for(PhotonDoc place : places) {
+			words.addAll(Arrays.asList(place.getName().get("name").split("[ -]+")));
+		}
+
+		final GeometryFactory geometryFactory = new GeometryFactory();
+		final Random random = new Random(42);
+		final Importer importer = new Importer(client);
+		for(PhotonDoc place : places) {
+			importer.add(place);
+		}
+		for(int i = places.size() + 1; i <= places.size() + GENERATED_PLACES; i++) {
+			final String name = words.get(random.nextInt(words.size())) + " " + words.get(random.nextInt(words.size()));
+			importer.add(createPlace(i, name, random.nextDouble() * 360 - 180, random.nextDouble() * 170 - 85, geometryFactory));
+		}
+		importer.finish();
+	}
+
+	private static PhotonDoc createPlace(long id, String name, double lon, double lat, GeometryFactory geometryFactory) {
+		final double importance = (id % 100) / 200d;
+		return new PhotonDoc(id, "N", id, "place", "village", ImmutableMap.of("name", name), null, null, null, 0,
+				importance, null, geometryFactory.createPoint(new Coordinate(lon, lat)), 0);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(ScoringBenchmark.class.getSimpleName()).forks(1).warmupIterations(5).measurementIterations(10).build()).run();
+	}
+}
@@ -0,0 +1,62 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * compares the per request cost of building the search query: rendering the former json templates with StrSubstitutor
+ * against {@link SearchQueryBuilder}. Both produce the bytes that are sent to elasticsearch.
+ * <p/>
+ * run the main method with the test classpath, e.g. from the IDE after mvn test-compile
+ *
+ * @author christoph
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SearchQueryBenchmark {
+	private QueryTemplates queryTemplates;
+	private SearchQueryBuilder queryBuilder;
+
+	@Setup
+	public void setUp() throws IOException {
+		queryTemplates = new QueryTemplates();
+		queryBuilder = new SearchQueryBuilder();
+	}
+
+	@Benchmark
+	public String template() {
+		return queryTemplates.render("berlin alexanderplatz", "de", null, null, true);
+	}
+
+	@Benchmark
+	public String templateLocationBias() {
+		return queryTemplates.render("berlin alexanderplatz", "de", 13.4, 52.5, true);
+	}
+
+	@Benchmark
+	public BytesReference queryBuilder() {
+		return queryBuilder.build("berlin alexanderplatz", "de", null, null, true).buildAsBytes();
+	}
+
+	@Benchmark
+	public BytesReference queryBuilderLocationBias() {
+		return queryBuilder.build("berlin alexanderplatz", "de", 13.4, 52.5, true).buildAsBytes();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(SearchQueryBenchmark.class.getSimpleName()).forks(1).warmupIterations(5).measurementIterations(10).build()).run();
+	}
+}
@@ -0,0 +1,77 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import de.komoot.photon.ESBaseTester;
+import org.elasticsearch.action.admin.indices.validate.query.ValidateQueryResponse;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * the query builder must search like the former json templates. Both queries are parsed by elasticsearch and their
+ * lucene queries are compared, so defaults and number formats written by one side only do not matter.
+ */
+public class SearchQueryBuilderTest extends ESBaseTester {
+
+    private QueryTemplates templates;
+    private SearchQueryBuilder builder;
+
+    @Before
+    public void setUp() throws Exception {
+        setUpES();
+        templates = new QueryTemplates();
+        builder = new SearchQueryBuilder();
+    }
+
+    @Test
+    public void testSameAsTemplate() {
+        for (String lang : new String[]{"de", "en", "fr", "it"}) {
+            for (boolean matchAll : new boolean[]{true, false}) {
+                assertSameQuery("berlin", lang, null, null, matchAll);
+                assertSameQuery("Dircksenstraße 51", lang, null, null, matchAll);
+            }
+        }
+    }
+
+    @Test
+    public void testSameAsTemplateWithLocationBias() {
+        assertSameQuery("berlin", "de", 13.4, 52.5, true);
+        assertSameQuery("avenue de la république", "fr", 2.2071267, 48.8924273, false);
+        assertSameQuery("auckland", "en", 174.765551, -36.853467, true);
+    }
+
+    @Test
+    public void testEscaping() {
+        assertSameQuery("\"quoted\" back\\slash", "en", null, null, true);
+        assertSameQuery("{\"a\": [1]}", "en", 13.4, 52.5, false);
+    }
+
+    private void assertSameQuery(String query, String lang, Double lon, Double lat, boolean matchAll) {
+        String template = templates.render(query, lang, lon, lat, matchAll)
+                // the MVEL scripts of the templates were replaced by native scripts with the same formulas
+                .replace("\"script\": \"1 + doc['importance'].value * 40\"",
+                        "\"script\": \"" + ImportanceScoreScript.NAME + "\", \"lang\": \"native\"")
+                .replace("\"script\": \"dist = doc['coordinate'].distanceInKm(lat, lon); 1 / (0.5 - 0.5 * exp(-5*dist/maxDist))\"",
+                        "\"script\": \"" + LocationBiasScoreScript.NAME + "\", \"lang\": \"native\"");
+        assertFalse(template.contains("doc["));
+
+        String expected = explain(template.getBytes());
+        String actual = explain(builder.build(query, lang, lon, lat, matchAll).buildAsBytes().toBytes());
+        assertEquals(query + " (" + lang + ")", expected, actual);
+    }
+
+    private String explain(byte[] query) {
+        ValidateQueryResponse response = getClient().admin().indices().prepareValidateQuery(Server.ALIAS)
+                .setSource(wrap(query)).setExplain(true).execute().actionGet();
+        assertTrue(new String(query), response.isValid());
+        return response.getQueryExplanation().get(0).getExplanation();
+    }
+
+    private static byte[] wrap(byte[] query) {
+        byte[] prefix = "{\"query\": ".getBytes();
+        byte[] source = new byte[prefix.length + query.length + 1];
+        System.arraycopy(prefix, 0, source, 0, prefix.length);
+        System.arraycopy(query, 0, source, prefix.length, query.length);
+        source[source.length - 1] = '}';
+        return source;
+    }
+}
@@ -0,0 +1,116 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SnapshotArchiveTest {
+    private File directory;
+    private File repository;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDir();
+        repository = new File(directory, "repository");
+
+        // files of different sizes in nested directories, like a snapshot repository
+        Random random = new Random(42);
+        write(new File(repository, "index"), "{\"snapshots\":[\"photon\"]}".getBytes(Charsets.UTF_8));
+        write(new File(repository, "metadata-photon"), new byte[0]);
+        for (int shard = 0; shard < 5; shard++) {
+            for (int file = 0; file < 4; file++) {
+                byte[] bytes = new byte[random.nextInt(300000)];
+                random.nextBytes(bytes);
+                write(new File(repository, "indices/photon/" + shard + "/__" + file), bytes);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        FileUtils.forceMkdir(file.getParentFile());
+        Files.write(bytes, file);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File zip = new File(directory, "snapshot.zip");
+        SnapshotArchive.zip(repository, zip, 3);
+        // the deflated parts are deleted
+        assertEquals(Arrays.asList("repository", "snapshot.zip"), sorted(directory.list()));
+
+        File extracted = new File(directory, "extracted");
+        SnapshotArchive.extract(zip, extracted, 2);
+        assertSameFiles(repository, new File(extracted, "repository"));
+
+        File streamed = new File(directory, "streamed");
+        InputStream in = new FileInputStream(zip);
+        SnapshotArchive.extract(in, streamed);
+        assertSameFiles(repository, new File(streamed, "repository"));
+    }
+
+    @Test
+    public void testEntryOutsideOfTargetIsRejected() throws IOException {
+        for (String name : Arrays.asList("../evil", "repository/../../evil", "../extracted-evil/evil")) {
+            File zip = new File(directory, "evil.zip");
+            ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+            out.putNextEntry(new ZipEntry(name));
+            out.write("evil".getBytes(Charsets.UTF_8));
+            out.closeEntry();
+            out.close();
+
+            File target = new File(directory, "extracted");
+            try {
+                SnapshotArchive.extract(zip, target, 2);
+                fail("extracted " + name);
+            } catch (IOException e) {
+                // rejected
+            }
+            try {
+                SnapshotArchive.extract(new FileInputStream(zip), target);
+                fail("extracted " + name + " while streaming");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains(name));
+            }
+            assertFalse(new File(directory, "evil").exists());
+            assertFalse(new File(directory, "extracted-evil").exists());
+        }
+    }
+
+    private static List<String> sorted(String[] names) {
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    private static void assertSameFiles(File expected, File actual) throws IOException {
+        assertTrue(actual.getPath(), actual.isDirectory());
+        assertEquals(sorted(expected.list()), sorted(actual.list()));
+        for (String name : expected.list()) {
+            File expectedFile = new File(expected, name);
+            File actualFile = new File(actual, name);
+            if (expectedFile.isDirectory()) {
+                assertSameFiles(expectedFile, actualFile);
+            } else {
+                assertTrue(actualFile.getPath(), Files.equal(expectedFile, actualFile));
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package de.komoot.photon.importer.elasticsearch;
+
+import de.komoot.photon.ESBaseTester;
+import de.komoot.photon.importer.model.PhotonDoc;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class UpdaterTest extends ESBaseTester {
+
+    @Before
+    public void setUp() {
+        setUpES();
+        deleteAll();
+    }
+
+    @Test
+    public void testFinishListenerSeesChanges() {
+        Map<String, String> nameMap = new HashMap<String, String>();
+        nameMap.put("name", "updated");
+        final Searcher searcher = new Searcher(getClient());
+        final AtomicInteger found = new AtomicInteger(-1);
+
+        Updater instance = new Updater(getClient());
+        instance.setFinishListener(new Runnable() {
+            @Override
+            public void run() {
+                found.set(searcher.search("updated", "en", null, null, 10, true).length);
+            }
+        });
+        instance.create(PhotonDoc.create(2, "way", 2, nameMap));
+        instance.finish();
+        instance.close();
+
+        assertEquals(1, found.get());
+    }
+}
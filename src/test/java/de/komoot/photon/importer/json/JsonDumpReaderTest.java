@@ -0,0 +1,141 @@
+package de.komoot.photon.importer.json;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class JsonDumpReaderTest {
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * returns at most 3 bytes per read, like a slow or decompressing stream
+     */
+    private static InputStream trickle(String content) {
+        return new FilterInputStream(new ByteArrayInputStream(content.getBytes(Charsets.UTF_8))) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(3, len));
+            }
+        };
+    }
+
+    private static List<String> readLines(InputStream in, int blockSize) throws IOException {
+        JsonDumpReader.LineReader reader = new JsonDumpReader.LineReader(in, blockSize);
+        List<BytesArray> lines = new ArrayList<BytesArray>();
+        BytesArray line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+
+        // lines are slices of blocks that are never overwritten, they are decoded after everything was read
+        List<String> decoded = new ArrayList<String>();
+        for (BytesArray l : lines) {
+            decoded.add(l.toUtf8());
+        }
+        return decoded;
+    }
+
+    @Test
+    public void testLinesSpanningBlocks() throws IOException {
+        String content = "abc\n0123456789abcdefghij\nxy\n\nlast\n";
+        List<String> expected = Arrays.asList("abc", "0123456789abcdefghij", "xy", "", "last");
+
+        for (int blockSize = 1; blockSize <= 40; blockSize++) {
+            assertEquals("block size " + blockSize, expected, readLines(trickle(content), blockSize));
+        }
+    }
+
+    @Test
+    public void testCrLf() throws IOException {
+        assertEquals(Arrays.asList("a", "bb", "", "c"), readLines(trickle("a\r\nbb\r\n\r\nc\r\n"), 4));
+        // a carriage return inside a line is kept
+        assertEquals(Arrays.asList("a\rb"), readLines(trickle("a\rb\n"), 4));
+    }
+
+    @Test
+    public void testMissingTrailingNewline() throws IOException {
+        assertEquals(Arrays.asList("a", "last"), readLines(trickle("a\nlast"), 3));
+        assertEquals(Arrays.asList("last"), readLines(trickle("last\r"), 3));
+        assertEquals(Arrays.asList("a"), readLines(trickle("a\n"), 3));
+        assertEquals(new ArrayList<String>(), readLines(trickle(""), 3));
+    }
+
+    @Test
+    public void testMultiByteCharactersSplitAcrossBlocks() throws IOException {
+        String content = "Straße\nÖsterreich 北京市\n🌍\n";
+        List<String> expected = Arrays.asList("Straße", "Österreich 北京市", "🌍");
+
+        for (int blockSize = 1; blockSize <= 16; blockSize++) {
+            assertEquals("block size " + blockSize, expected, readLines(trickle(content), blockSize));
+        }
+    }
+
+    @Test
+    public void testGzipIsDetected() throws IOException {
+        String content = "{\"index\":{\"_id\":\"1\"}}\n{}\n";
+
+        File gzipped = new File(directory, "dump.gz");
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(gzipped));
+        out.write(content.getBytes(Charsets.UTF_8));
+        out.close();
+        assertEquals(content, read(gzipped));
+
+        File plain = new File(directory, "dump");
+        Files.write(content, plain, Charsets.UTF_8);
+        assertEquals(content, read(plain));
+    }
+
+    @Test
+    public void testTinyFilesAreNotGzip() throws IOException {
+        File empty = new File(directory, "empty");
+        Files.write(new byte[0], empty);
+        assertEquals("", read(empty));
+
+        // the first byte of the gzip magic only
+        File single = new File(directory, "single");
+        Files.write(new byte[]{0x1f}, single);
+        assertArrayEquals(new byte[]{0x1f}, readBytes(single));
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(readBytes(file), Charsets.UTF_8);
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        InputStream in = JsonDumpReader.open(file);
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+}
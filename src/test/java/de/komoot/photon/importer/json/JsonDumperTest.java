@@ -0,0 +1,160 @@
+package de.komoot.photon.importer.json;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import de.komoot.photon.ESBaseTester;
+import de.komoot.photon.importer.elasticsearch.Importer;
+import de.komoot.photon.importer.model.PhotonDoc;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * dumps documents from several threads and imports the dump again
+ */
+public class JsonDumperTest extends ESBaseTester {
+    private File directory;
+
+    @Before
+    public void setUp() {
+        setUpES();
+        deleteAll();
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testJsonRotatesBySize() throws Exception {
+        // chunks are rotated once a buffer of 1 mb was written, each writer gets about 2 mb
+        JsonDumper dumper = new JsonDumper(directory, 1, false, false, 2);
+        dump(dumper, 8000, 400);
+
+        JSONObject manifest = checkManifest(8000, "json", "none");
+        assertTrue(manifest.getJSONArray("chunks").length() > 2);
+        checkImport(8000);
+    }
+
+    @Test
+    public void testGzipRotatesByDocuments() throws Exception {
+        JsonDumper dumper = new JsonDumper(directory, 1L << 30, true, false, 3);
+        dumper.setChunkDocuments(100);
+        dump(dumper, 1000, 10);
+
+        JSONArray chunks = checkManifest(1000, "json", "gzip").getJSONArray("chunks");
+        assertTrue(chunks.length() >= 10);
+        for (int i = 0; i < chunks.length(); i++) {
+            assertTrue(chunks.getJSONObject(i).getLong("documents") <= 100);
+            assertTrue(chunks.getJSONObject(i).getString("file").endsWith(".json.gz"));
+        }
+        checkImport(1000);
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        JsonDumper dumper = new JsonDumper(directory, 1L << 30, true, true, 3);
+        dumper.setChunkDocuments(100);
+        dump(dumper, 500, 10);
+
+        JSONArray chunks = checkManifest(500, "binary", "gzip").getJSONArray("chunks");
+        assertTrue(chunks.getJSONObject(0).getString("file").endsWith(".bin.gz"));
+        checkImport(500);
+    }
+
+    /**
+     * adds the documents with place ids 1 to count from 3 threads and finishes the dump
+     */
+    private static void dump(final JsonDumper dumper, final int count, final int nameLength) throws InterruptedException {
+        final GeometryFactory geometryFactory = new GeometryFactory();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 3; t++) {
+            final int first = t + 1;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (long id = first; id <= count; id += 3) {
+                        PhotonDoc doc = new PhotonDoc(id, "N", id, "place", "village", ImmutableMap.of("name", name(id, nameLength)),
+                                null, null, null, 0, 0.5, null, geometryFactory.createPoint(new Coordinate(13.4, 52.5)), 0);
+                        dumper.add(doc);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        dumper.finish();
+    }
+
+    private static String name(long id, int length) {
+        return Strings.padEnd("place" + id + " ", length, 'x');
+    }
+
+    /**
+     * checks that the manifest lists every file of the dump with its document count, size and checksum
+     */
+    private JSONObject checkManifest(long documents, String format, String compression) throws IOException {
+        JSONObject manifest = new JSONObject(Files.toString(new File(directory, JsonDumper.MANIFEST), Charsets.UTF_8));
+        assertEquals(documents, manifest.getLong("documents"));
+        assertEquals(format, manifest.getString("format"));
+        assertEquals(compression, manifest.getString("compression"));
+
+        JSONArray chunks = manifest.getJSONArray("chunks");
+        Set<String> files = new HashSet<String>();
+        long chunkDocuments = 0;
+        for (int i = 0; i < chunks.length(); i++) {
+            JSONObject chunk = chunks.getJSONObject(i);
+            File file = new File(directory, chunk.getString("file"));
+            files.add(file.getName());
+            chunkDocuments += chunk.getLong("documents");
+
+            byte[] bytes = Files.toByteArray(file);
+            assertEquals(file.getName(), bytes.length, chunk.getLong("bytes"));
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            assertEquals(file.getName(), Long.toHexString(crc.getValue()), chunk.getString("crc32"));
+        }
+        assertEquals(documents, chunkDocuments);
+
+        Set<String> written = new HashSet<String>();
+        for (String file : directory.list()) {
+            written.add(file);
+        }
+        written.remove(JsonDumper.MANIFEST);
+        assertEquals(written, files);
+        return manifest;
+    }
+
+    private void checkImport(long documents) {
+        Importer importer = new Importer(getClient());
+        assertEquals(documents, new JsonDumpReader(importer, 2).read(directory));
+        refresh();
+        assertEquals(documents, importer.count());
+
+        Map<String, Object> source = getClient().prepareGet("photon", "place", "7").execute().actionGet().getSource();
+        assertTrue(((Map<?, ?>) source.get("name")).get("default").toString().startsWith("place7 "));
+    }
+}
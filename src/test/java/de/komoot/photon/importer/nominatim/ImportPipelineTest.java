@@ -0,0 +1,138 @@
+package de.komoot.photon.importer.nominatim;
+
+import com.google.common.collect.ImmutableMap;
+import de.komoot.photon.importer.Importer;
+import de.komoot.photon.importer.model.PhotonDoc;
+import de.komoot.photon.importer.nominatim.model.AddressRow;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ImportPipelineTest {
+    private static final int PLACES = 50000;
+
+    /**
+     * serves the place ids 1 to PLACES without a database, fails reading or enriching the given place id
+     */
+    private static class FakeConnector extends NominatimConnector {
+        final AtomicInteger read = new AtomicInteger();
+        final long failReading;
+        final long failEnriching;
+
+        FakeConnector(long failReading, long failEnriching) {
+            super("localhost", 5432, "nominatim", "test", "test");
+            this.failReading = failReading;
+            this.failEnriching = failEnriching;
+        }
+
+        @Override
+        List<long[]> getPartitions(String column, int count) {
+            List<long[]> ranges = new ArrayList<long[]>();
+            int size = PLACES / count;
+            for (int i = 0; i < count; i++) {
+                ranges.add(new long[]{i * size + 1, i == count - 1 ? PLACES : (i + 1) * size});
+            }
+            return ranges;
+        }
+
+        @Override
+        void readPartition(String column, long from, long to, PlaceHandler handler) {
+            for (long id = from; id <= to; id++) {
+                if (id == failReading)
+                    throw new IllegalStateException("connection lost");
+                read.incrementAndGet();
+                handler.handle(PhotonDoc.create(id, "N", id, ImmutableMap.of("name", "place " + id)), 30);
+            }
+        }
+
+        @Override
+        List<AddressRow> getAddresses(PhotonDoc doc, int rankAddress) {
+            if (doc.getPlaceId() == failEnriching)
+                throw new IllegalStateException("address lookup failed");
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * counts how often each document arrives, fails on the given place id
+     */
+    private static class FakeImporter implements Importer {
+        final ConcurrentMap<Long, AtomicInteger> added = new ConcurrentHashMap<Long, AtomicInteger>();
+        final long failAdding;
+        volatile boolean finished;
+
+        FakeImporter(long failAdding) {
+            this.failAdding = failAdding;
+        }
+
+        @Override
+        public void add(PhotonDoc doc) {
+            if (doc.getPlaceId() == failAdding)
+                throw new IllegalStateException("bulk failed");
+            AtomicInteger count = added.putIfAbsent(doc.getPlaceId(), new AtomicInteger(1));
+            if (count != null)
+                count.incrementAndGet();
+        }
+
+        @Override
+        public void finish() {
+            finished = true;
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testEveryDocumentArrivesOnce() {
+        FakeConnector connector = new FakeConnector(-1, -1);
+        FakeImporter importer = new FakeImporter(-1);
+
+        assertEquals(PLACES, new ImportPipeline(connector, importer, 3, 4, "place_id").run());
+
+        assertTrue(importer.finished);
+        assertEquals(PLACES, importer.added.size());
+        for (long id = 1; id <= PLACES; id++) {
+            assertEquals("place " + id, 1, importer.added.get(id).get());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testReaderFailureStopsImport() {
+        assertStopped(new FakeConnector(10, -1), new FakeImporter(-1));
+    }
+
+    @Test(timeout = 60000)
+    public void testEnricherFailureStopsReaders() {
+        FakeConnector connector = new FakeConnector(-1, 10);
+        assertStopped(connector, new FakeImporter(-1));
+        assertTrue(connector.read.get() < PLACES);
+    }
+
+    @Test(timeout = 60000)
+    public void testIndexerFailureStopsReaders() {
+        FakeConnector connector = new FakeConnector(-1, -1);
+        assertStopped(connector, new FakeImporter(10));
+        assertTrue(connector.read.get() < PLACES);
+    }
+
+    /**
+     * the pipeline must return with the failure instead of hanging on its queues and must not finish the import
+     */
+    private static void assertStopped(FakeConnector connector, FakeImporter importer) {
+        try {
+            new ImportPipeline(connector, importer, 3, 4, "place_id").run();
+            fail("failure not propagated");
+        } catch (RuntimeException e) {
+            Throwable cause = e;
+            while (cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            assertTrue(cause instanceof IllegalStateException);
+        }
+        assertFalse(importer.finished);
+        assertTrue(importer.added.size() < PLACES);
+    }
+}
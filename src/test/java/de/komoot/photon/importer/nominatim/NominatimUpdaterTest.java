@@ -0,0 +1,152 @@
+package de.komoot.photon.importer.nominatim;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import de.komoot.photon.importer.Updater;
+import de.komoot.photon.importer.model.PhotonDoc;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class NominatimUpdaterTest {
+
+    /**
+     * in-memory placex: parent_place_id and the place_addressline rows of every place, answered like the sql queries
+     */
+    private static class FakeConnector extends NominatimConnector {
+        final Map<Long, Integer> ranks = new HashMap<Long, Integer>();
+        final Map<Long, Long> parents = new HashMap<Long, Long>();
+        final Map<Long, Set<Long>> addressLines = new HashMap<Long, Set<Long>>();
+        int dependentQueries;
+
+        FakeConnector() {
+            super("localhost", 5432, "nominatim", "test", "test");
+        }
+
+        void add(long placeId, int rankSearch, long parentPlaceId, Long... addressPlaceIds) {
+            ranks.put(placeId, rankSearch);
+            parents.put(placeId, parentPlaceId);
+            addressLines.put(placeId, ImmutableSet.copyOf(addressPlaceIds));
+        }
+
+        @Override
+        void readDependentPlaceIds(Collection<Long> addressPlaceIds, PlaceIdHandler handler) {
+            dependentQueries++;
+            for (long placeId : ranks.keySet()) {
+                boolean child = addressPlaceIds.contains(parents.get(placeId));
+                boolean addressLine = false;
+                for (long address : addressLines.get(placeId)) {
+                    addressLine |= addressPlaceIds.contains(address);
+                }
+                if (child || addressLine)
+                    handler.handle(placeId, ranks.get(placeId));
+            }
+        }
+
+        @Override
+        public Map<Long, PhotonDoc> getByPlaceIds(Collection<Long> placeIds) {
+            Map<Long, PhotonDoc> docs = new HashMap<Long, PhotonDoc>();
+            for (long placeId : placeIds) {
+                docs.put(placeId, PhotonDoc.create(placeId, "N", placeId, ImmutableMap.of("name", "place " + placeId)));
+            }
+            return docs;
+        }
+    }
+
+    private static class RecordingUpdater implements Updater {
+        final List<Long> updated = new ArrayList<Long>();
+
+        @Override
+        public void create(PhotonDoc doc) {
+        }
+
+        @Override
+        public void update(PhotonDoc doc) {
+        }
+
+        @Override
+        public void delete(Long id) {
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void updateOrCreate(PhotonDoc updatedDoc) {
+            updated.add(updatedDoc.getPlaceId());
+        }
+    }
+
+    private FakeConnector connector;
+    private RecordingUpdater updater;
+    private NominatimUpdater nominatimUpdater;
+
+    @Before
+    public void setUp() {
+        // city 1 with suburb 2, street 3 and its houses 4 and 5, a poi 6 in the city itself, and an unrelated city 10
+        // with street 11 and house 12. Houses and pois have no place_addressline rows.
+        connector = new FakeConnector();
+        connector.add(1, 16, 0);
+        connector.add(2, 20, 1, 1L);
+        connector.add(3, 26, 2, 1L, 2L);
+        connector.add(4, 30, 3);
+        connector.add(5, 30, 3);
+        connector.add(6, 30, 1);
+        connector.add(10, 16, 0);
+        connector.add(11, 26, 10, 10L);
+        connector.add(12, 30, 11);
+
+        updater = new RecordingUpdater();
+        nominatimUpdater = new NominatimUpdater("localhost", 5432, "nominatim", "test", "test");
+        nominatimUpdater.setExporter(connector);
+        nominatimUpdater.setUpdater(updater);
+    }
+
+    @Test
+    public void testRenamedCityUpdatesHousesOfItsStreets() {
+        assertEquals(5, nominatimUpdater.updateDependentPlaces(new HashSet<Long>(ImmutableSet.of(1L))));
+
+        assertEquals(ImmutableSet.of(2L, 3L, 4L, 5L, 6L), new HashSet<Long>(updater.updated));
+        // the street is found as child of the suburb and by its address line, it is exported once
+        assertEquals(5, updater.updated.size());
+    }
+
+    @Test
+    public void testRenamedStreetUpdatesItsHouses() {
+        nominatimUpdater.updateDependentPlaces(new HashSet<Long>(ImmutableSet.of(3L)));
+
+        assertEquals(ImmutableSet.of(4L, 5L), new HashSet<Long>(updater.updated));
+    }
+
+    @Test
+    public void testDependentsOfHousesAreNotSearched() {
+        nominatimUpdater.updateDependentPlaces(new HashSet<Long>(ImmutableSet.of(11L)));
+
+        assertEquals(ImmutableSet.of(12L), new HashSet<Long>(updater.updated));
+        // the street's children, nothing is searched below the house
+        assertEquals(1, connector.dependentQueries);
+    }
+
+    @Test
+    public void testChangedPlacesAreNotExportedAgain() {
+        // city and street changed in the same update, both were exported with the changed places already
+        nominatimUpdater.updateDependentPlaces(new HashSet<Long>(ImmutableSet.of(1L, 3L)));
+
+        assertEquals(ImmutableSet.of(2L, 4L, 5L, 6L), new HashSet<Long>(updater.updated));
+        assertEquals(4, updater.updated.size());
+    }
+
+    @Test
+    public void testNoChangedAddressPlaces() {
+        assertEquals(0, nominatimUpdater.updateDependentPlaces(new HashSet<Long>()));
+        assertEquals(0, connector.dependentQueries);
+    }
+}
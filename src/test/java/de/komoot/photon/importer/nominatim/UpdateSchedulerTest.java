@@ -0,0 +1,76 @@
+package de.komoot.photon.importer.nominatim;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class UpdateSchedulerTest {
+
+    /**
+     * reports the given pending counts one after another, an update processes one place
+     */
+    private static class FakeUpdater extends NominatimUpdater {
+        private final LinkedList<Long> pendingCounts;
+        int updates;
+
+        FakeUpdater(Long... pendingCounts) {
+            super("localhost", 5432, "nominatim", "test", "test");
+            this.pendingCounts = new LinkedList<Long>(Arrays.asList(pendingCounts));
+        }
+
+        @Override
+        public long getPendingCount() {
+            if (pendingCounts.isEmpty())
+                throw new IllegalStateException("database unavailable");
+            return pendingCounts.removeFirst();
+        }
+
+        @Override
+        public long update() {
+            updates++;
+            return 1;
+        }
+    }
+
+    private static long poll(UpdateScheduler scheduler) {
+        scheduler.poll();
+        return scheduler.getStatus().getIntervalSeconds();
+    }
+
+    @Test
+    public void testIntervalDoublesWithoutChanges() {
+        FakeUpdater updater = new FakeUpdater(0L, 0L, 0L, 0L);
+        UpdateScheduler scheduler = new UpdateScheduler(updater, 1, 8);
+
+        List<Long> intervals = Arrays.asList(poll(scheduler), poll(scheduler), poll(scheduler), poll(scheduler));
+        assertEquals(Arrays.asList(2L, 4L, 8L, 8L), intervals);
+        assertEquals(0, updater.updates);
+    }
+
+    @Test
+    public void testIntervalResetsWhileChangesRemain() {
+        // idle, idle, a backlog the update cannot finish, a backlog the update clears
+        FakeUpdater updater = new FakeUpdater(0L, 0L, 5L, 3L, 2L, 0L);
+        UpdateScheduler scheduler = new UpdateScheduler(updater, 1, 8);
+
+        assertEquals(2, poll(scheduler));
+        assertEquals(4, poll(scheduler));
+        assertEquals(1, poll(scheduler));
+        assertEquals(1, updater.updates);
+        assertEquals(2, poll(scheduler));
+        assertEquals(2, updater.updates);
+        assertEquals(2, scheduler.getStatus().getTotalPlaces());
+    }
+
+    @Test
+    public void testFailedPollUsesMaxInterval() {
+        FakeUpdater updater = new FakeUpdater(0L);
+        UpdateScheduler scheduler = new UpdateScheduler(updater, 1, 8);
+
+        assertEquals(2, poll(scheduler));
+        assertEquals(8, poll(scheduler));
+        assertEquals("database unavailable", scheduler.getStatus().getLastError());
+    }
+}